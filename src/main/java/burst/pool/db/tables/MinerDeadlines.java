@@ -116,7 +116,7 @@ public class MinerDeadlines extends TableImpl<MinerDeadlinesRecord> {
      */
     @Override
     public List<Index> getIndexes() {
-        return Arrays.<Index>asList(Indexes.MINER_DEADLINES_MINER_DEADLINES_INDEX, Indexes.MINER_DEADLINES_PRIMARY);
+        return Arrays.<Index>asList(Indexes.MINER_DEADLINES_MINER_DEADLINES_HEIGHT_INDEX, Indexes.MINER_DEADLINES_MINER_DEADLINES_INDEX, Indexes.MINER_DEADLINES_PRIMARY);
     }
 
     /**
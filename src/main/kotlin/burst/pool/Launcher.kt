@@ -3,14 +3,22 @@ package burst.pool
 import burst.kit.service.BurstNodeService
 import burst.pool.miners.MinerMaths
 import burst.pool.miners.MinerTracker
+import burst.pool.net.NioHttpServer
+import burst.pool.net.VirtualThreadAsyncRunner
+import burst.pool.net.VirtualThreads
+import burst.pool.node.Node
+import burst.pool.node.NodeSelector
 import burst.pool.payout.BurstPayoutService
 import burst.pool.payout.PayoutService
+import burst.pool.pool.BinaryServer
 import burst.pool.pool.Pool
+import burst.pool.pool.PushServer
 import burst.pool.pool.Server
 import burst.pool.storage.config.PropertyService
 import burst.pool.storage.config.PropertyServiceImpl
 import burst.pool.storage.config.Props
 import burst.pool.storage.persistent.DbStorageService
+import burst.pool.storage.persistent.MemoryStorageService
 import burst.pool.storage.persistent.StorageService
 import fi.iki.elonen.NanoHTTPD
 import org.flywaydb.core.api.FlywayException
@@ -33,8 +41,10 @@ object Launcher {
         val propertyService: PropertyService = PropertyServiceImpl(propertiesFileName)
         val minerMaths = MinerMaths(propertyService.get(Props.nAvg), propertyService.get(Props.nMin))
         val nodeService = BurstNodeService.getCompositeInstanceWithUserAgent(Constants.USER_AGENT, *propertyService.get(Props.nodeAddresses).toTypedArray())
+        val nodeSelector = NodeSelector(propertyService.get(Props.nodeAddresses).map { address -> Node(address, BurstNodeService.getInstance(address, Constants.USER_AGENT)) })
         val storageService: StorageService = try {
-            DbStorageService(propertyService, minerMaths, nodeService)
+            val dbStorageService = DbStorageService(propertyService, minerMaths, nodeService)
+            if (propertyService.get(Props.storageMode) == "memory") MemoryStorageService(dbStorageService, minerMaths, propertyService) else dbStorageService
         } catch (e: SQLException) {
             logger.error("Could not open database connection", e)
             exitProcess(-1)
@@ -42,12 +52,25 @@ object Launcher {
             logger.error("Could not open database connection", e)
             exitProcess(-1)
         }
-        val minerTracker = MinerTracker(nodeService, propertyService)
-        val payoutService: PayoutService = BurstPayoutService(nodeService, propertyService, minerTracker)
-        val pool = Pool(nodeService, storageService, propertyService, minerTracker, payoutService)
-        val server = Server(storageService, propertyService, pool, minerTracker)
+        val minerTracker = MinerTracker(nodeSelector, propertyService)
+        val payoutService: PayoutService = BurstPayoutService(nodeSelector, propertyService, minerTracker)
+        val pool = Pool(nodeSelector, storageService, propertyService, minerTracker, payoutService)
+        val server = Server(storageService, propertyService, pool, minerTracker, nodeSelector)
         try {
-            server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, false)
+            if (propertyService.get(Props.httpEngine) == "nio") {
+                NioHttpServer(server, server::serveAsync, propertyService).start()
+            } else {
+                if (propertyService.get(Props.httpVirtualThreads)) {
+                    VirtualThreads.newExecutor()?.let { server.setAsyncRunner(VirtualThreadAsyncRunner(it)) }
+                }
+                server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, false)
+            }
+            if (propertyService.get(Props.pushServerPort) != 0) {
+                PushServer(pool, propertyService).start()
+            }
+            if (propertyService.get(Props.binaryServerPort) != 0) {
+                BinaryServer(pool, propertyService).start()
+            }
         } catch (e: IOException) {
             logger.error("Could not start server", e)
             exitProcess(-1)
@@ -0,0 +1,49 @@
+package burst.pool.metrics
+
+import com.google.gson.JsonObject
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Thread-safe count / mean / max of a duration
+ */
+class LatencyStats {
+    private val samples = LongAdder()
+    private val totalNanos = LongAdder()
+    private val maxNanos = AtomicLong()
+
+    fun record(nanos: Long) {
+        samples.increment()
+        totalNanos.add(nanos)
+        maxNanos.accumulateAndGet(nanos) { a, b -> Math.max(a, b) }
+    }
+
+    fun recordSince(startNanos: Long) {
+        record(System.nanoTime() - startNanos)
+    }
+
+    val count: Long
+        get() = samples.sum()
+
+    val meanMillis: Double
+        get() {
+            val count = samples.sum()
+            return if (count == 0L) 0.0 else totalNanos.sum().toDouble() / count / NANOS_PER_MILLI
+        }
+
+    val maxMillis: Double
+        get() = maxNanos.get().toDouble() / NANOS_PER_MILLI
+
+    fun toJson(): JsonObject {
+        val jsonObject = JsonObject()
+        jsonObject.addProperty("count", count)
+        jsonObject.addProperty("meanMillis", meanMillis)
+        jsonObject.addProperty("maxMillis", maxMillis)
+        return jsonObject
+    }
+
+    companion object {
+        private val NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1).toDouble()
+    }
+}
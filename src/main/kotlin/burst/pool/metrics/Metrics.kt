@@ -0,0 +1,32 @@
+package burst.pool.metrics
+
+import com.google.gson.JsonObject
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Registry of the pool's internal metrics, served by /api/getMetrics
+ */
+object Metrics {
+    private val latencies = ConcurrentHashMap<String, LatencyStats>()
+    private val gauges = ConcurrentHashMap<String, () -> Number>()
+
+    fun latency(name: String): LatencyStats {
+        return latencies.computeIfAbsent(name) { LatencyStats() }
+    }
+
+    fun gauge(name: String, supplier: () -> Number) {
+        gauges[name] = supplier
+    }
+
+    fun toJson(): JsonObject {
+        val jsonObject = JsonObject()
+        val latenciesJson = JsonObject()
+        TreeMap(latencies).forEach { (name, stats) -> latenciesJson.add(name, stats.toJson()) }
+        jsonObject.add("latencies", latenciesJson)
+        val gaugesJson = JsonObject()
+        TreeMap(gauges).forEach { (name, supplier) -> gaugesJson.addProperty(name, supplier()) }
+        jsonObject.add("gauges", gaugesJson)
+        return jsonObject
+    }
+}
@@ -0,0 +1,210 @@
+package burst.pool.miners
+
+import burst.kit.entity.BurstAddress
+import burst.pool.pool.SubmissionException
+import burst.pool.storage.config.PropertyService
+import burst.pool.storage.config.Props
+import burst.pool.storage.persistent.StorageService
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentSkipListSet
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Write-behind stage for miner deadline bookkeeping. Submissions are queued from the request threads
+ * and persisted in batches on a background thread, so that submitting does not wait for the database.
+ */
+open class DeadlineQueue(private val storageService: StorageService, private val minerTracker: MinerTracker, propertyService: PropertyService) : AutoCloseable {
+    private val queue = ArrayBlockingQueue<QueuedDeadline>(propertyService.get(Props.deadlineQueueCapacity))
+    private val batchSize = propertyService.get(Props.deadlineQueueBatchSize)
+    private val nextSequence = AtomicLong()
+    // Sequence numbers of the deadlines that have been queued but not yet persisted or given up on
+    private val unsettled = ConcurrentSkipListSet<Long>()
+    private val failedCount = AtomicLong()
+    private val flushLock = ReentrantLock()
+    private val flushedCondition = flushLock.newCondition()
+    private val thread = Thread(this::run, "deadline-queue")
+    @Volatile
+    private var running = true
+
+    /**
+     * Queue a deadline to be stored. Never blocks, so that it can be called from request and verification threads.
+     * @throws SubmissionException if the queue is full
+     */
+    @Throws(SubmissionException::class)
+    fun submit(minerAddress: BurstAddress, deadline: Deadline, userAgent: String?) {
+        val sequence = nextSequence.incrementAndGet()
+        unsettled.add(sequence)
+        if (!queue.offer(QueuedDeadline(minerAddress, deadline, userAgent, longArrayOf(sequence)))) {
+            unsettled.remove(sequence)
+            logger.warn("Deadline queue is full, rejecting submission from {}", minerAddress.fullAddress)
+            throw SubmissionException("Pool is busy, please try again", SubmissionException.ERROR_BUSY)
+        }
+    }
+
+    /**
+     * Wait until every deadline queued before this call has been persisted or given up on.
+     * @return Whether every deadline given up on while waiting was stored, false if any could not be
+     */
+    fun flush(): Boolean {
+        val target = nextSequence.get()
+        val failedBefore = failedCount.get()
+        flushLock.withLock {
+            // Deadlines queued later may be stored first while an older one is waiting to be retried, so only the older ones count
+            while (unsettled.headSet(target, true).isNotEmpty() && running) {
+                try {
+                    flushedCondition.await(100, TimeUnit.MILLISECONDS)
+                } catch (e: InterruptedException) {
+                    Thread.currentThread().interrupt()
+                    return false
+                }
+            }
+        }
+        return failedCount.get() == failedBefore
+    }
+
+    private fun run() {
+        val batch = ArrayList<QueuedDeadline>(batchSize)
+        var retries: List<QueuedDeadline> = emptyList()
+        while (running) {
+            try {
+                batch.addAll(retries)
+                retries = emptyList()
+                if (batch.isEmpty()) {
+                    batch.add(queue.poll(100, TimeUnit.MILLISECONDS) ?: continue)
+                } else {
+                    // Back off before retrying deadlines that could not be stored
+                    Thread.sleep(RETRY_DELAY_MILLIS)
+                }
+                queue.drainTo(batch, Math.max(0, batchSize - batch.size))
+                retries = retryOrGiveUp(persist(batch))
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                return
+            } finally {
+                batch.clear()
+            }
+        }
+    }
+
+    /**
+     * @return The deadlines to try again
+     */
+    private fun retryOrGiveUp(failed: List<QueuedDeadline>): List<QueuedDeadline> {
+        val retries = ArrayList<QueuedDeadline>()
+        for (queuedDeadline in failed) {
+            if (queuedDeadline.attempts < MAX_ATTEMPTS) {
+                retries.add(queuedDeadline)
+            } else {
+                logger.error("Giving up persisting deadline for miner {} at height {}", queuedDeadline.minerAddress.fullAddress, queuedDeadline.deadline.height)
+                failedCount.addAndGet(queuedDeadline.sequences.size.toLong())
+                settle(queuedDeadline)
+            }
+        }
+        flushLock.withLock { flushedCondition.signalAll() }
+        return retries
+    }
+
+    /**
+     * @return The deadlines that could not be stored
+     */
+    private fun persist(batch: List<QueuedDeadline>): List<QueuedDeadline> {
+        // Only the best deadline per miner per height needs storing
+        val grouped = LinkedHashMap<Pair<BurstAddress, Long>, QueuedDeadline>()
+        for (queuedDeadline in batch) {
+            grouped.merge(Pair(queuedDeadline.minerAddress, queuedDeadline.deadline.height), queuedDeadline) { existing, newer ->
+                val best = if (newer.deadline.deadline < existing.deadline.deadline) newer.deadline else existing.deadline
+                QueuedDeadline(existing.minerAddress, best, newer.userAgent, existing.sequences + newer.sequences, Math.max(existing.attempts, newer.attempts))
+            }
+        }
+        grouped.values.forEach { it.attempts++ }
+        // Don't let block processing start until the batch is stored
+        val failed = try {
+            minerTracker.whileNotProcessingBlock { persistGrouped(grouped.values) }
+        } catch (e: Exception) {
+            logger.error("Error persisting deadlines", e)
+            grouped.values.toList()
+        }
+        val failedSet = failed.toSet()
+        grouped.values.filterNot { it in failedSet }.forEach { settle(it) }
+        return failed
+    }
+
+    private fun settle(queuedDeadline: QueuedDeadline) {
+        queuedDeadline.sequences.forEach { unsettled.remove(it) }
+    }
+
+    /**
+     * @return The deadlines that could not be stored
+     */
+    private fun persistGrouped(grouped: Collection<QueuedDeadline>): List<QueuedDeadline> {
+        val transactionalStorageService = try {
+            storageService.beginTransaction()!!
+        } catch (e: Exception) {
+            logger.warn("Could not open transactional storage service, persisting deadlines individually", e)
+            return grouped.filterNot { persistIndividually(it) }
+        }
+        try {
+            grouped.forEach { store(transactionalStorageService, it) }
+            transactionalStorageService.commitTransaction()
+        } catch (e: Exception) {
+            logger.warn("Error persisting batch of {} deadlines, persisting individually", grouped.size, e)
+            try {
+                transactionalStorageService.rollbackTransaction()
+            } catch (e1: Exception) {
+                logger.error("Error rolling back transaction", e1)
+            }
+            transactionalStorageService.close()
+            return grouped.filterNot { persistIndividually(it) }
+        }
+        transactionalStorageService.close()
+        return emptyList()
+    }
+
+    /**
+     * @return Whether the deadline was stored
+     */
+    private fun persistIndividually(queuedDeadline: QueuedDeadline): Boolean {
+        return try {
+            store(storageService, queuedDeadline)
+            true
+        } catch (e: Exception) {
+            logger.error("Error persisting deadline for miner {}", queuedDeadline.minerAddress.fullAddress, e)
+            false
+        }
+    }
+
+    private fun store(storageService: StorageService, queuedDeadline: QueuedDeadline) {
+        store(storageService, queuedDeadline.minerAddress, queuedDeadline.deadline, queuedDeadline.userAgent)
+    }
+
+    internal open fun store(storageService: StorageService, minerAddress: BurstAddress, deadline: Deadline, userAgent: String?) {
+        minerTracker.storeMinerDeadline(storageService, minerAddress, deadline.deadline, deadline.baseTarget, deadline.height, userAgent)
+    }
+
+    override fun close() {
+        running = false
+        thread.interrupt()
+    }
+
+    /**
+     * @param sequences The sequence numbers of the submitted deadlines this one stands for, after merging those for the same miner and height
+     * @param attempts The number of times storing this deadline has been attempted
+     */
+    private class QueuedDeadline(val minerAddress: BurstAddress, val deadline: Deadline, val userAgent: String?, val sequences: LongArray, var attempts: Int = 0)
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(DeadlineQueue::class.java)
+        private const val MAX_ATTEMPTS = 3
+        private const val RETRY_DELAY_MILLIS = 1000L
+    }
+
+    init {
+        thread.isDaemon = true
+        thread.start()
+    }
+}
@@ -3,7 +3,7 @@ package burst.pool.miners
 import burst.kit.entity.BurstAddress
 import burst.kit.entity.BurstValue
 import burst.pool.storage.config.PropertyService
-import burst.pool.storage.config.Props
+import burst.pool.storage.persistent.MinerAccounting
 import burst.pool.storage.persistent.MinerStore
 import java.math.BigInteger
 import java.util.*
@@ -12,16 +12,11 @@ import java.util.concurrent.atomic.AtomicReference
 import java.util.function.Consumer
 
 class Miner(private val minerMaths: MinerMaths, private val propertyService: PropertyService, override val address: BurstAddress, private val store: MinerStore) : Payable {
-    fun recalculateCapacity(currentBlockHeight: Long, fastBlocks: List<Long>) { // Prune older deadlines
-        store.deadlines.forEach { deadline ->
-            if (currentBlockHeight - deadline.height >= propertyService.get(Props.nAvg)) {
-                store.removeDeadline(deadline.height)
-            }
-        }
+    fun recalculateCapacity(fastBlocks: List<Long>) { // Older deadlines have already been pruned by StorageService.pruneDeadlines
         // Calculate hitSum
         val hitSum = AtomicReference(BigInteger.ZERO)
-        val deadlineCount = AtomicInteger(store.deadlineCount)
         val deadlines = store.deadlines.toMutableList()
+        val deadlineCount = AtomicInteger(deadlines.size)
         val outliers = calculateOutliers(deadlines)
         deadlines.forEach { deadline ->
             if (fastBlocks.contains(deadline.height) || outliers.contains(deadline.height)) {
@@ -131,6 +126,9 @@ class Miner(private val minerMaths: MinerMaths, private val propertyService: Pro
             store.userAgent = userAgent
         }
 
+    val accounting: MinerAccounting
+        get() = MinerAccounting(address.burstID.signedLongId, store.pendingBalance, store.estimatedCapacity, store.share)
+
     fun getBestDeadline(height: Long): BigInteger? {
         val deadline = store.getDeadline(height)
         return deadline?.deadline
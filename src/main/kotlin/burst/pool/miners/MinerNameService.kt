@@ -0,0 +1,80 @@
+package burst.pool.miners
+
+import burst.kit.entity.BurstAddress
+import burst.kit.entity.response.Account
+import burst.pool.node.NodeSelector
+import burst.pool.storage.config.PropertyService
+import burst.pool.storage.config.Props
+import burst.pool.storage.persistent.StorageService
+import io.reactivex.Completable
+import io.reactivex.Observable
+import io.reactivex.disposables.Disposable
+import io.reactivex.schedulers.Schedulers
+import org.slf4j.LoggerFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps miner names up to date without asking the node for every submission. Refresh requests are
+ * deduplicated per account, names are only refreshed once they are older than the configured TTL,
+ * and stale names are fetched in batches on a background schedule.
+ */
+class MinerNameService(private val nodeSelector: NodeSelector, propertyService: PropertyService, private val onAccount: (StorageService, Account) -> Unit) : AutoCloseable {
+    private val ttlMillis = TimeUnit.MINUTES.toMillis(propertyService.get(Props.minerNameRefreshMinutes).toLong())
+    private val batchSize = propertyService.get(Props.minerNameRefreshBatchSize)
+    private val lastRefreshed = ConcurrentHashMap<BurstAddress, Long>()
+    private val pending = ConcurrentHashMap<BurstAddress, StorageService>()
+    private val inFlight = ConcurrentHashMap.newKeySet<BurstAddress>()
+    private val disposable: Disposable
+
+    /**
+     * Schedule the miner's name to be refreshed, unless it has been refreshed recently or a refresh is already scheduled.
+     */
+    fun requestRefresh(storageService: StorageService, minerAddress: BurstAddress) {
+        val lastRefreshTime = lastRefreshed[minerAddress]
+        if (lastRefreshTime != null && System.currentTimeMillis() - lastRefreshTime < ttlMillis) return
+        if (inFlight.contains(minerAddress)) return
+        pending.putIfAbsent(minerAddress, storageService)
+    }
+
+    private fun refreshPending(): Completable {
+        val batch = ArrayList<Pair<BurstAddress, StorageService>>()
+        for (minerAddress in pending.keys) {
+            if (batch.size >= batchSize) break
+            val storageService = pending.remove(minerAddress) ?: continue
+            if (inFlight.add(minerAddress)) {
+                batch.add(Pair(minerAddress, storageService))
+            }
+        }
+        if (batch.isEmpty()) return Completable.complete()
+        logger.debug("Refreshing names of {} miners", batch.size)
+        return Observable.fromIterable(batch)
+                .flatMapCompletable { (minerAddress, storageService) ->
+                    nodeSelector.call(NodeSelector.GET_ACCOUNT) { it.getAccount(minerAddress) }
+                            .doOnSuccess { account -> onAccount(storageService, account) }
+                            .ignoreElement()
+                            .doOnError { throwable -> logger.warn("Error obtaining miner account info for {}", minerAddress.fullAddress, throwable) }
+                            .onErrorComplete()
+                            .doFinally {
+                                // Failed lookups also wait for the TTL so that we don't keep asking about unknown accounts
+                                lastRefreshed[minerAddress] = System.currentTimeMillis()
+                                inFlight.remove(minerAddress)
+                            }
+                }
+    }
+
+    override fun close() {
+        disposable.dispose()
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(MinerNameService::class.java)
+        private const val REFRESH_INTERVAL_SECONDS = 10L
+    }
+
+    init {
+        disposable = Observable.interval(REFRESH_INTERVAL_SECONDS, REFRESH_INTERVAL_SECONDS, TimeUnit.SECONDS, Schedulers.io())
+                .flatMapCompletable { refreshPending() }
+                .subscribe({ }, { e: Throwable -> logger.error("Fatal error refreshing miner names (Thread now shutdown)", e) })
+    }
+}
@@ -4,27 +4,31 @@ import burst.kit.entity.BurstAddress
 import burst.kit.entity.BurstID
 import burst.kit.entity.BurstValue
 import burst.kit.entity.response.Account
-import burst.kit.service.BurstNodeService
+import burst.pool.node.NodeSelector
 import burst.pool.entity.WonBlock
+import burst.pool.metrics.Metrics
 import burst.pool.storage.config.PropertyService
 import burst.pool.storage.config.Props
 import burst.pool.storage.persistent.StorageService
-import io.reactivex.disposables.CompositeDisposable
 import org.slf4j.LoggerFactory
 import java.math.BigInteger
-import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.locks.ReentrantReadWriteLock
 import java.util.function.Consumer
 
-class MinerTracker(private val nodeService: BurstNodeService, private val propertyService: PropertyService) : AutoCloseable {
-    private val compositeDisposable = CompositeDisposable()
-    private val currentlyProcessingBlock = AtomicBoolean(false)
-    fun onMinerSubmittedDeadline(storageService: StorageService, minerAddress: BurstAddress, deadline: BigInteger, baseTarget: BigInteger, blockHeight: Long, userAgent: String?) {
-        waitUntilNotProcessingBlock()
+class MinerTracker(nodeSelector: NodeSelector, private val propertyService: PropertyService) : AutoCloseable {
+    private val nameService = MinerNameService(nodeSelector, propertyService) { storageService, account -> onMinerAccount(storageService, account) }
+    // Block processing holds the write lock, everything that must not run during block processing goes through the read lock
+    private val blockProcessingLock = ReentrantReadWriteLock()
+    private val blockProcessingWait = Metrics.latency("blockProcessingWait")
+    /**
+     * Stores a deadline a miner submitted, as queued by [DeadlineQueue]. The caller must be in [whileNotProcessingBlock].
+     */
+    fun storeMinerDeadline(storageService: StorageService, minerAddress: BurstAddress, deadline: BigInteger, baseTarget: BigInteger, blockHeight: Long, userAgent: String?) {
         val miner = getOrCreate(storageService, minerAddress)
         miner!!.processNewDeadline(Deadline(deadline, baseTarget, blockHeight))
         miner.userAgent = userAgent
-        compositeDisposable.add(nodeService.getAccount(minerAddress).subscribe({ accountResponse -> onMinerAccount(storageService, accountResponse) }) { throwable -> onMinerAccountError(throwable) })
+        nameService.requestRefresh(storageService, minerAddress)
     }
 
     private fun getOrCreate(storageService: StorageService, minerAddress: BurstAddress): Miner? {
@@ -49,7 +53,7 @@ class MinerTracker(private val nodeService: BurstNodeService, private val proper
         reward = reward.subtract(winnerTake)
         val winningMiner = getOrCreate(transactionalStorageService, winner)
         winningMiner!!.increasePending(winnerTake)
-        val miners = transactionalStorageService.miners
+        val miners = getMinersForBlock(transactionalStorageService, blockHeight)
         updateMiners(miners, blockHeight, fastBlocks)
         // Update each miner's pending
         val amountTaken = AtomicReference(BurstValue.fromBurst(0.0))
@@ -64,15 +68,25 @@ class MinerTracker(private val nodeService: BurstNodeService, private val proper
             }
             miners.forEach(Consumer { miner -> miner.increasePending(amountRemainingEach) })
         }
+        transactionalStorageService.storeMinerAccounting(miners.map { miner -> miner.accounting })
         logger.info("Finished processing winnings for block " + blockHeight + ". Reward ( + fees) is " + blockReward + ", pool fee is " + poolTake + ", forger take is " + winnerTake + ", miners took " + amountTaken.get())
     }
 
     fun onBlockNotWon(transactionalStorageService: StorageService, blockHeight: Long, fastBlocks: List<Long>) {
-        updateMiners(transactionalStorageService.miners, blockHeight, fastBlocks)
+        val miners = getMinersForBlock(transactionalStorageService, blockHeight)
+        updateMiners(miners, blockHeight, fastBlocks)
+        transactionalStorageService.storeMinerAccounting(miners.map { miner -> miner.accounting })
+    }
+
+    private fun getMinersForBlock(transactionalStorageService: StorageService, blockHeight: Long): List<Miner> {
+        // Deadlines leave the nAvg window once they are nAvg blocks old
+        val minDeadlineHeight = blockHeight - propertyService.get(Props.nAvg) + 1
+        transactionalStorageService.pruneDeadlines(minDeadlineHeight)
+        return transactionalStorageService.getMinersWithDeadlines(minDeadlineHeight)
     }
 
     private fun updateMiners(miners: List<Miner>, blockHeight: Long, fastBlocks: List<Long>) { // Update each miner's effective capacity
-        miners.forEach(Consumer { miner -> miner.recalculateCapacity(blockHeight, fastBlocks) })
+        miners.forEach(Consumer { miner -> miner.recalculateCapacity(fastBlocks) })
         // Calculate pool capacity
         val poolCapacity = AtomicReference(0.0)
         miners.forEach(Consumer { miner -> poolCapacity.updateAndGet { v -> (v + miner.capacity) } })
@@ -81,38 +95,52 @@ class MinerTracker(private val nodeService: BurstNodeService, private val proper
     }
 
     fun setMinerMinimumPayout(storageService: StorageService, minerAddress: BurstAddress, amount: BurstValue) {
-        waitUntilNotProcessingBlock()
-        val miner = storageService.getMiner(minerAddress) ?: return
-        miner.minimumPayout = amount
+        whileNotProcessingBlock {
+            val miner = storageService.getMiner(minerAddress) ?: return@whileNotProcessingBlock
+            miner.minimumPayout = amount
+        }
     }
 
     private fun onMinerAccount(storageService: StorageService, accountResponse: Account) {
-        waitUntilNotProcessingBlock()
-        val miner = storageService.getMiner(accountResponse.id) ?: return
         if (accountResponse.name == null) return
-        miner.name = accountResponse.name
-    }
-
-    private fun onMinerAccountError(throwable: Throwable) {
-        logger.warn("Error obtaining miner account info", throwable)
+        whileNotProcessingBlock {
+            val miner = storageService.getMiner(accountResponse.id) ?: return@whileNotProcessingBlock
+            miner.name = accountResponse.name
+        }
     }
 
-    fun waitUntilNotProcessingBlock() {
-        while (currentlyProcessingBlock.get()) {
-            try {
-                Thread.sleep(1)
-            } catch (e: InterruptedException) {
-                Thread.currentThread().interrupt()
-            }
+    /**
+     * Runs [action], making sure that block processing does not start until it has finished.
+     * If a block is currently being processed, the calling thread is parked until processing has finished.
+     */
+    fun <T> whileNotProcessingBlock(action: () -> T): T {
+        val readLock = blockProcessingLock.readLock()
+        val startTime = System.nanoTime()
+        val held = blockProcessingLock.isWriteLocked
+        readLock.lock()
+        if (held) {
+            blockProcessingWait.recordSince(startTime)
+        }
+        try {
+            return action()
+        } finally {
+            readLock.unlock()
         }
     }
 
+    /**
+     * Must be set and unset by the thread processing the block.
+     */
     fun setCurrentlyProcessingBlock(currentlyProcessingBlock: Boolean) {
-        this.currentlyProcessingBlock.set(currentlyProcessingBlock)
+        if (currentlyProcessingBlock) {
+            blockProcessingLock.writeLock().lock()
+        } else if (blockProcessingLock.isWriteLockedByCurrentThread) {
+            blockProcessingLock.writeLock().unlock()
+        }
     }
 
     override fun close() {
-        compositeDisposable.dispose()
+        nameService.close()
     }
 
     companion object {
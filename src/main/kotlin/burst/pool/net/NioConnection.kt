@@ -0,0 +1,127 @@
+package burst.pool.net
+
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.net.SocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.SelectionKey
+import java.nio.channels.SocketChannel
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A connection to a [NioServer]. Reads happen on the selector thread, [send] may be called from any thread.
+ */
+class NioConnection internal constructor(private val server: NioServer, private val eventLoop: NioServer.EventLoop, private val channel: SocketChannel, private val key: SelectionKey, private val maxMessageSize: Int) {
+    private var readBuffer = ByteBuffer.allocate(Math.min(INITIAL_READ_BUFFER_SIZE, maxMessageSize))
+    private val writeQueue = ConcurrentLinkedQueue<ByteBuffer>()
+    private val queuedBytes = AtomicInteger()
+    private val closed = AtomicBoolean()
+    @Volatile
+    private var closeWhenSent = false
+    val remoteAddress: SocketAddress? = channel.remoteAddress
+    @Volatile
+    var attachment: Any? = null
+    // Only touched from the selector thread
+    internal var lastActivity = System.currentTimeMillis()
+        private set
+
+    val isOpen: Boolean
+        get() = !closed.get()
+
+    internal val hasUnsentBytes: Boolean
+        get() = queuedBytes.get() > 0
+
+    /**
+     * Queue [bytes] to be written. Connections that fall too far behind are closed.
+     */
+    fun send(bytes: ByteArray) {
+        if (closed.get()) return
+        if (queuedBytes.addAndGet(bytes.size) > MAX_QUEUED_BYTES) {
+            logger.debug("Closing connection from {}, too many unsent bytes", remoteAddress)
+            close()
+            return
+        }
+        writeQueue.add(ByteBuffer.wrap(bytes))
+        eventLoop.execute { flush() }
+    }
+
+    /**
+     * Close the connection once everything passed to [send] so far has been written
+     */
+    fun closeWhenSent() {
+        closeWhenSent = true
+        eventLoop.execute { flush() }
+    }
+
+    fun close() {
+        if (!closed.compareAndSet(false, true)) return
+        try {
+            channel.close()
+        } catch (e: IOException) {
+            logger.debug("Error closing connection from {}", remoteAddress, e)
+        }
+        server.dispatchDisconnected(this)
+    }
+
+    internal fun read() {
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= maxMessageSize) {
+                logger.debug("Closing connection from {}, message too long", remoteAddress)
+                close()
+                return
+            }
+            val oldBuffer = readBuffer
+            oldBuffer.flip()
+            readBuffer = ByteBuffer.allocate(Math.min(oldBuffer.capacity() * 2, maxMessageSize))
+            readBuffer.put(oldBuffer)
+        }
+        val read = try {
+            channel.read(readBuffer)
+        } catch (e: IOException) {
+            -1
+        }
+        if (read < 0) {
+            close()
+            return
+        }
+        lastActivity = System.currentTimeMillis()
+        readBuffer.flip()
+        try {
+            server.dispatchRead(this, readBuffer)
+        } finally {
+            readBuffer.compact()
+        }
+    }
+
+    internal fun flush() {
+        if (closed.get()) return
+        try {
+            while (true) {
+                val buffer = writeQueue.peek() ?: break
+                if (channel.write(buffer) > 0) lastActivity = System.currentTimeMillis()
+                if (buffer.hasRemaining()) {
+                    // Socket buffer is full, continue once it drains
+                    key.interestOps(SelectionKey.OP_READ or SelectionKey.OP_WRITE)
+                    return
+                }
+                writeQueue.poll()
+                queuedBytes.addAndGet(-buffer.limit())
+            }
+            if (closeWhenSent) {
+                close()
+                return
+            }
+            key.interestOps(SelectionKey.OP_READ)
+        } catch (e: Exception) {
+            close()
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(NioConnection::class.java)
+        private const val INITIAL_READ_BUFFER_SIZE = 1024
+        private const val MAX_QUEUED_BYTES = 1024 * 1024
+    }
+}
@@ -0,0 +1,210 @@
+package burst.pool.net
+
+import burst.pool.metrics.Metrics
+import burst.pool.storage.config.PropertyService
+import burst.pool.storage.config.Props
+import fi.iki.elonen.NanoHTTPD
+import org.slf4j.LoggerFactory
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.time.ZoneOffset
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+import java.util.*
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * HTTP/1.1 front end on [NioServer], as an alternative to NanoHTTPD's thread per connection.
+ * Requests are parsed on the selector threads, handled on a fixed pool of worker threads and answered in order, with keep-alive and pipelining.
+ * @param httpServer The NanoHTTPD server whose handlers serve the requests. It is not started.
+ * @param handler Serves a request, see [burst.pool.pool.Server.serveAsync]
+ */
+class NioHttpServer(private val httpServer: NanoHTTPD, private val handler: (NanoHTTPD.IHTTPSession) -> CompletableFuture<NanoHTTPD.Response>, propertyService: PropertyService)
+    : NioServer(propertyService.get(Props.serverPort), "http-server", MAX_HEADER_SIZE + MAX_BODY_SIZE, propertyService.get(Props.httpEventLoopThreads), NanoHTTPD.SOCKET_READ_TIMEOUT.toLong()) {
+    private val workers: ExecutorService
+
+    override fun onConnected(connection: NioConnection) {
+        connection.attachment = ConnectionState(OrderedReplies(connection))
+    }
+
+    override fun onRead(connection: NioConnection, buffer: ByteBuffer) {
+        val state = connection.attachment as ConnectionState
+        if (state.closing) {
+            buffer.position(buffer.limit())
+            return
+        }
+        while (buffer.hasRemaining()) {
+            val start = buffer.position()
+            val session = try {
+                parseRequest(connection, state, buffer)
+            } catch (e: HttpParseException) {
+                state.replies.append(CompletableFuture.completedFuture(serialize(null, NanoHTTPD.newFixedLengthResponse(e.status, NanoHTTPD.MIME_PLAINTEXT, e.message))), true)
+                state.closing = true
+                buffer.position(buffer.limit())
+                return
+            }
+            if (session == null) {
+                buffer.position(start)
+                return
+            }
+            state.continueSent = false
+            state.replies.append(dispatch(session), !session.keepAlive)
+            if (!session.keepAlive) {
+                state.closing = true
+                buffer.position(buffer.limit())
+                return
+            }
+        }
+    }
+
+    // Connections waiting on a response, such as a long poll, are kept open past the keep-alive timeout
+    override fun isIdle(connection: NioConnection): Boolean {
+        return (connection.attachment as ConnectionState).replies.isDone
+    }
+
+    /**
+     * @return The request, or null if it has not arrived in full yet
+     */
+    @Throws(HttpParseException::class)
+    private fun parseRequest(connection: NioConnection, state: ConnectionState, buffer: ByteBuffer): NioHttpSession? {
+        val start = buffer.position()
+        val headerEnd = findHeaderEnd(buffer)
+        if (headerEnd < 0) {
+            if (buffer.remaining() > MAX_HEADER_SIZE) throw HttpParseException(NanoHTTPD.Response.Status.BAD_REQUEST, "Headers too large")
+            return null
+        }
+        val lines = String(buffer.array(), buffer.arrayOffset() + start, headerEnd - start, StandardCharsets.ISO_8859_1).split("\r\n")
+        val requestLine = lines[0].split(" ")
+        if (requestLine.size != 3) throw HttpParseException(NanoHTTPD.Response.Status.BAD_REQUEST, "Malformed request line")
+        val method = NanoHTTPD.Method.lookup(requestLine[0]) ?: throw HttpParseException(NanoHTTPD.Response.Status.METHOD_NOT_ALLOWED, "Unsupported method")
+        val headers = HashMap<String, String>()
+        for (i in 1 until lines.size) {
+            val line = lines[i]
+            if (line.isEmpty()) continue
+            val colon = line.indexOf(':')
+            if (colon <= 0) throw HttpParseException(NanoHTTPD.Response.Status.BAD_REQUEST, "Malformed header")
+            headers[line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH)] = line.substring(colon + 1).trim()
+        }
+        if (headers.containsKey("transfer-encoding")) throw HttpParseException(NanoHTTPD.Response.Status.NOT_IMPLEMENTED, "Chunked requests are not supported")
+        val contentLength = headers["content-length"]?.let { it.toIntOrNull() ?: -1 } ?: 0
+        if (contentLength < 0 || contentLength > MAX_BODY_SIZE) throw HttpParseException(NanoHTTPD.Response.Status.BAD_REQUEST, "Invalid Content-Length")
+        if (buffer.limit() - headerEnd < contentLength) {
+            if (!state.continueSent && headers["expect"].equals("100-continue", ignoreCase = true)) {
+                state.replies.append(CompletableFuture.completedFuture(CONTINUE))
+                state.continueSent = true
+            }
+            return null
+        }
+        val body = ByteArray(contentLength)
+        buffer.position(headerEnd)
+        buffer.get(body)
+        val connectionHeader = headers["connection"]
+        val keepAlive = if (requestLine[2] == "HTTP/1.1") !"close".equals(connectionHeader, ignoreCase = true) else "keep-alive".equals(connectionHeader, ignoreCase = true)
+        return NioHttpSession(httpServer, method, requestLine[1], headers, body, connection.remoteAddress, keepAlive)
+    }
+
+    /**
+     * @return The position just after the blank line ending the headers, or -1 if it has not arrived yet
+     */
+    private fun findHeaderEnd(buffer: ByteBuffer): Int {
+        for (i in buffer.position() until buffer.limit() - 3) {
+            if (buffer.get(i) == CR && buffer.get(i + 1) == LF && buffer.get(i + 2) == CR && buffer.get(i + 3) == LF) {
+                return i + 4
+            }
+        }
+        return -1
+    }
+
+    private fun dispatch(session: NioHttpSession): CompletableFuture<ByteArray> {
+        val reply = CompletableFuture<ByteArray>()
+        try {
+            workers.execute {
+                try {
+                    handler(session).whenComplete { response, throwable ->
+                        reply.complete(serialize(session, response ?: errorResponse(throwable)))
+                    }
+                } catch (e: Exception) {
+                    reply.complete(serialize(session, errorResponse(e)))
+                }
+            }
+        } catch (e: RejectedExecutionException) {
+            reply.complete(serialize(session, NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.SERVICE_UNAVAILABLE, NanoHTTPD.MIME_PLAINTEXT, "Server shutting down")))
+        }
+        return reply
+    }
+
+    private fun errorResponse(throwable: Throwable?): NanoHTTPD.Response {
+        logger.warn("Error getting response", throwable)
+        return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, throwable?.message)
+    }
+
+    /**
+     * Writes the response the same way NanoHTTPD would have, with the body read in full so that it can be sent with its length
+     * @param session The request being answered, or null if it could not be parsed
+     */
+    private fun serialize(session: NioHttpSession?, response: NanoHTTPD.Response): ByteArray {
+        return try {
+            val body = response.data?.readBytes() ?: ByteArray(0)
+            val header = StringBuilder()
+            header.append("HTTP/1.1 ").append(response.status.description).append(" \r\n")
+            response.mimeType?.let { header.append("Content-Type: ").append(it).append("\r\n") }
+            header.append("Date: ").append(DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC))).append("\r\n")
+            for (name in FORWARDED_HEADERS) {
+                response.getHeader(name)?.let { header.append(name).append(": ").append(it).append("\r\n") }
+            }
+            header.append("Connection: ").append(if (session?.keepAlive == true) "keep-alive" else "close").append("\r\n")
+            header.append("Content-Length: ").append(body.size).append("\r\n\r\n")
+            val output = ByteArrayOutputStream(header.length + body.size)
+            output.write(header.toString().toByteArray(StandardCharsets.ISO_8859_1))
+            if (session?.getMethod() != NanoHTTPD.Method.HEAD) output.write(body)
+            output.toByteArray()
+        } catch (e: Exception) {
+            logger.warn("Error writing response", e)
+            INTERNAL_ERROR
+        } finally {
+            try {
+                response.close()
+            } catch (e: Exception) {
+                logger.debug("Error closing response", e)
+            }
+        }
+    }
+
+    override fun close() {
+        super.close()
+        workers.shutdownNow()
+    }
+
+    private class ConnectionState(val replies: OrderedReplies) {
+        // Only touched from the connection's selector thread
+        var continueSent = false
+        var closing = false
+    }
+
+    private class HttpParseException(val status: NanoHTTPD.Response.Status, override val message: String) : Exception(message)
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(NioHttpServer::class.java)
+        private const val MAX_HEADER_SIZE = 8 * 1024
+        private const val MAX_BODY_SIZE = 1024 * 1024
+        private const val CR = '\r'.toByte()
+        private const val LF = '\n'.toByte()
+        private val CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".toByteArray(StandardCharsets.ISO_8859_1)
+        private val INTERNAL_ERROR = "HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".toByteArray(StandardCharsets.ISO_8859_1)
+        // NanoHTTPD does not expose a response's headers, so the ones the handlers set are copied by name
+        private val FORWARDED_HEADERS = arrayOf("ETag", "Location")
+    }
+
+    init {
+        val threadNumber = AtomicInteger()
+        workers = (if (propertyService.get(Props.httpVirtualThreads)) VirtualThreads.newExecutor() else null)
+                ?: Executors.newFixedThreadPool(propertyService.get(Props.httpWorkerThreads)) { runnable ->
+                    val thread = Thread(runnable, "http-worker-" + threadNumber.incrementAndGet())
+                    thread.isDaemon = true
+                    thread
+                }
+        Metrics.gauge("httpConnections") { connectionCount }
+    }
+}
@@ -0,0 +1,105 @@
+package burst.pool.net
+
+import fi.iki.elonen.NanoHTTPD
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+import java.io.UnsupportedEncodingException
+import java.net.InetSocketAddress
+import java.net.SocketAddress
+import java.net.URLDecoder
+import java.nio.charset.StandardCharsets
+import java.util.*
+
+/**
+ * A request parsed by [NioHttpServer], presented as a NanoHTTPD session so that the existing handlers can serve it.
+ * The body has already been read in full, and form-encoded bodies are already included in the parameters.
+ * @param requestHeaders Header names in lower case, as NanoHTTPD does
+ */
+class NioHttpSession(private val httpServer: NanoHTTPD, private val requestMethod: NanoHTTPD.Method, requestUri: String, private val requestHeaders: Map<String, String>, private val body: ByteArray, private val remoteAddress: SocketAddress?, val keepAlive: Boolean) : NanoHTTPD.IHTTPSession {
+    private val path: String
+    private val query: String?
+    private val parameterValues = HashMap<String, MutableList<String>>()
+    private val firstParameterValues = HashMap<String, String>()
+    private val formEncoded = requestHeaders["content-type"]?.startsWith("application/x-www-form-urlencoded") ?: false
+
+    override fun execute() { // The request has already been read by NioHttpServer, and its response is written by it
+    }
+
+    override fun getCookies(): NanoHTTPD.CookieHandler {
+        return httpServer.CookieHandler(requestHeaders)
+    }
+
+    override fun getHeaders(): Map<String, String> {
+        return requestHeaders
+    }
+
+    override fun getInputStream(): InputStream {
+        return ByteArrayInputStream(body)
+    }
+
+    override fun getMethod(): NanoHTTPD.Method {
+        return requestMethod
+    }
+
+    @Deprecated("Use getParameters", ReplaceWith("parameters"))
+    override fun getParms(): Map<String, String> {
+        return firstParameterValues
+    }
+
+    override fun getParameters(): Map<String, List<String>> {
+        return parameterValues
+    }
+
+    override fun getQueryParameterString(): String? {
+        return query
+    }
+
+    override fun getUri(): String {
+        return path
+    }
+
+    override fun parseBody(files: MutableMap<String, String>) {
+        if (!formEncoded && body.isNotEmpty()) {
+            files["postData"] = String(body, StandardCharsets.UTF_8)
+        }
+    }
+
+    override fun getRemoteIpAddress(): String {
+        return (remoteAddress as? InetSocketAddress)?.address?.hostAddress ?: ""
+    }
+
+    override fun getRemoteHostName(): String {
+        return (remoteAddress as? InetSocketAddress)?.hostString ?: ""
+    }
+
+    private fun addParameters(encoded: String) {
+        for (parameter in encoded.split("&")) {
+            if (parameter.isEmpty()) continue
+            val separator = parameter.indexOf('=')
+            val name = decode(if (separator < 0) parameter else parameter.substring(0, separator))
+            val value = if (separator < 0) "" else decode(parameter.substring(separator + 1))
+            parameterValues.getOrPut(name) { ArrayList() }.add(value)
+            firstParameterValues.putIfAbsent(name, value)
+        }
+    }
+
+    companion object {
+        private fun decode(encoded: String): String {
+            return try {
+                URLDecoder.decode(encoded, "UTF-8")
+            } catch (e: IllegalArgumentException) {
+                encoded
+            } catch (e: UnsupportedEncodingException) {
+                encoded
+            }
+        }
+    }
+
+    init {
+        val queryStart = requestUri.indexOf('?')
+        path = decode((if (queryStart < 0) requestUri else requestUri.substring(0, queryStart)).replace("+", "%2B"))
+        query = if (queryStart < 0) null else requestUri.substring(queryStart + 1)
+        if (query != null) addParameters(query)
+        if (formEncoded) addParameters(String(body, StandardCharsets.UTF_8))
+    }
+}
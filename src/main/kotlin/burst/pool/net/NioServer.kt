@@ -0,0 +1,193 @@
+package burst.pool.net
+
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Non-blocking TCP server on a fixed number of selector threads. An idle connection costs a socket and a small buffer rather than a thread.
+ * Subclasses are called on the selector threads as bytes arrive, so they must hand anything slow off to another thread.
+ * @param maxMessageSize Largest message a subclass needs buffered before it can consume it. Connections exceeding it are closed.
+ * @param eventLoopCount Number of selector threads. Connections are spread between them and stay on the same one.
+ * @param idleTimeoutMillis Connections that have read and written nothing for this long, and that [isIdle], are closed. 0 keeps them open.
+ */
+abstract class NioServer(private val port: Int, private val name: String, private val maxMessageSize: Int, eventLoopCount: Int = 1, private val idleTimeoutMillis: Long = 0) : AutoCloseable {
+    private val serverChannel = ServerSocketChannel.open()
+    private val eventLoops = Array(eventLoopCount) { EventLoop(if (eventLoopCount == 1) name else "$name-$it") }
+    private val nextEventLoop = AtomicInteger()
+    private val connections = ConcurrentHashMap.newKeySet<NioConnection>()
+    @Volatile
+    private var running = true
+
+    val connectionCount: Int
+        get() = connections.size
+
+    @Throws(IOException::class)
+    fun start() {
+        serverChannel.configureBlocking(false)
+        serverChannel.bind(InetSocketAddress(port))
+        val acceptLoop = eventLoops[0]
+        acceptLoop.execute { serverChannel.register(acceptLoop.selector, SelectionKey.OP_ACCEPT) }
+        eventLoops.forEach { it.start() }
+        logger.info("{} listening on port {}", name, port)
+    }
+
+    protected abstract fun onConnected(connection: NioConnection)
+
+    /**
+     * Consume as many complete messages from [buffer] as possible. Whatever is left is kept and passed again once more bytes arrive.
+     * @param buffer The unconsumed bytes, ready for reading
+     */
+    protected abstract fun onRead(connection: NioConnection, buffer: ByteBuffer)
+
+    protected open fun onDisconnected(connection: NioConnection) {
+    }
+
+    /**
+     * @return Whether the connection is not waiting on anything, so that it may be closed once it times out
+     */
+    protected open fun isIdle(connection: NioConnection): Boolean {
+        return true
+    }
+
+    protected fun forEachConnection(action: (NioConnection) -> Unit) {
+        connections.forEach(action)
+    }
+
+    internal fun dispatchRead(connection: NioConnection, buffer: ByteBuffer) {
+        onRead(connection, buffer)
+    }
+
+    internal fun dispatchDisconnected(connection: NioConnection) {
+        connections.remove(connection)
+        onDisconnected(connection)
+    }
+
+    private fun accept() {
+        while (true) {
+            val channel = try {
+                serverChannel.accept() ?: return
+            } catch (e: IOException) {
+                logger.warn("Error accepting connection", e)
+                return
+            }
+            val eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.size)]
+            eventLoop.execute { register(eventLoop, channel) }
+        }
+    }
+
+    private fun register(eventLoop: EventLoop, channel: SocketChannel) {
+        try {
+            channel.configureBlocking(false)
+            channel.socket().tcpNoDelay = true
+            val key = channel.register(eventLoop.selector, SelectionKey.OP_READ)
+            val connection = NioConnection(this, eventLoop, channel, key, maxMessageSize)
+            key.attach(connection)
+            connections.add(connection)
+            onConnected(connection)
+        } catch (e: IOException) {
+            logger.debug("Error setting up connection", e)
+            try {
+                channel.close()
+            } catch (e1: IOException) {
+            }
+        }
+    }
+
+    override fun close() {
+        running = false
+        eventLoops.forEach { it.selector.wakeup() }
+        connections.forEach { it.close() }
+        try {
+            serverChannel.close()
+        } catch (e: IOException) {
+            logger.warn("Error closing {}", name, e)
+        }
+    }
+
+    internal inner class EventLoop(threadName: String) {
+        val selector: Selector = Selector.open()
+        private val thread = Thread(this::run, threadName)
+        private val tasks = ConcurrentLinkedQueue<() -> Unit>()
+        private var nextIdleCheck = System.currentTimeMillis() + idleTimeoutMillis
+
+        fun start() {
+            thread.start()
+        }
+
+        /**
+         * Run [task] on this loop's thread, which is the only one allowed to touch its selector and keys
+         */
+        fun execute(task: () -> Unit) {
+            tasks.add(task)
+            if (Thread.currentThread() !== thread) {
+                selector.wakeup()
+            }
+        }
+
+        private fun run() {
+            while (running) {
+                try {
+                    selector.select(idleTimeoutMillis)
+                    runTasks()
+                    val keys = selector.selectedKeys().iterator()
+                    while (keys.hasNext()) {
+                        val key = keys.next()
+                        keys.remove()
+                        if (!key.isValid) continue
+                        if (key.isAcceptable) {
+                            accept()
+                            continue
+                        }
+                        val connection = key.attachment() as NioConnection
+                        if (key.isReadable) connection.read()
+                        if (key.isValid && key.isWritable) connection.flush()
+                    }
+                    if (idleTimeoutMillis > 0 && System.currentTimeMillis() >= nextIdleCheck) {
+                        closeIdleConnections()
+                    }
+                    // Sends from the handlers above were queued without waking the selector, run them before it blocks again
+                    runTasks()
+                } catch (e: Exception) {
+                    if (running) logger.warn("Error in {}", thread.name, e)
+                }
+            }
+            try {
+                selector.close()
+            } catch (e: IOException) {
+                logger.warn("Error closing {}", thread.name, e)
+            }
+        }
+
+        private fun runTasks() {
+            while (true) {
+                val task = tasks.poll() ?: break
+                task()
+            }
+        }
+
+        private fun closeIdleConnections() {
+            val now = System.currentTimeMillis()
+            nextIdleCheck = now + idleTimeoutMillis
+            for (key in selector.keys().toList()) {
+                val connection = key.attachment() as? NioConnection ?: continue
+                if (now - connection.lastActivity >= idleTimeoutMillis && !connection.hasUnsentBytes && isIdle(connection)) {
+                    logger.debug("Closing idle connection from {}", connection.remoteAddress)
+                    connection.close()
+                }
+            }
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(NioServer::class.java)
+    }
+}
@@ -0,0 +1,28 @@
+package burst.pool.net
+
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Sends the replies to pipelined requests in the order the requests arrived, even though they may complete out of order.
+ * Only appended to from the connection's selector thread.
+ */
+class OrderedReplies(private val connection: NioConnection) {
+    private var tail: CompletableFuture<Unit> = CompletableFuture.completedFuture(Unit)
+
+    /**
+     * Whether every reply appended so far has been passed to the connection
+     */
+    val isDone: Boolean
+        get() = tail.isDone
+
+    /**
+     * @param reply Must not complete exceptionally, otherwise no further replies are sent
+     * @param closeAfter Whether to close the connection once this reply is written
+     */
+    fun append(reply: CompletableFuture<ByteArray>, closeAfter: Boolean = false) {
+        tail = tail.thenCombine(reply) { _, bytes ->
+            connection.send(bytes)
+            if (closeAfter) connection.closeWhenSent()
+        }
+    }
+}
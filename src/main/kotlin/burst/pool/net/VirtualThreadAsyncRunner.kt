@@ -0,0 +1,29 @@
+package burst.pool.net
+
+import fi.iki.elonen.NanoHTTPD
+import java.util.*
+import java.util.concurrent.ExecutorService
+
+/**
+ * Runs each NanoHTTPD connection on its own virtual thread rather than a platform thread, so that requests blocked
+ * on the database or a node don't tie up an OS thread each.
+ */
+class VirtualThreadAsyncRunner(private val executor: ExecutorService) : NanoHTTPD.AsyncRunner {
+    private val running = Collections.synchronizedList(ArrayList<NanoHTTPD.ClientHandler>())
+
+    override fun exec(code: NanoHTTPD.ClientHandler) {
+        running.add(code)
+        executor.execute(code)
+    }
+
+    override fun closed(clientHandler: NanoHTTPD.ClientHandler) {
+        running.remove(clientHandler)
+    }
+
+    override fun closeAll() {
+        // Copy, as closing a handler removes it from the list
+        for (clientHandler in ArrayList(running)) {
+            clientHandler.close()
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package burst.pool.net
+
+import org.slf4j.LoggerFactory
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Access to virtual threads without requiring a JDK that has them, as the pool is built for Java 8
+ */
+object VirtualThreads {
+    private val logger = LoggerFactory.getLogger(VirtualThreads::class.java)
+
+    /**
+     * @return An executor that starts a virtual thread per task, or null if this JVM does not support virtual threads
+     */
+    fun newExecutor(): ExecutorService? {
+        return try {
+            Executors::class.java.getMethod("newVirtualThreadPerTaskExecutor").invoke(null) as ExecutorService
+        } catch (e: NoSuchMethodException) {
+            logger.warn("Virtual threads are not supported by this JVM (Java {}), using platform threads", System.getProperty("java.version"))
+            null
+        } catch (e: ReflectiveOperationException) {
+            logger.warn("Could not create virtual thread executor, using platform threads", e)
+            null
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package burst.pool.node
+
+import com.google.gson.JsonObject
+
+/**
+ * Exponentially weighted moving average of the latency and error rate of one type of call to one node
+ */
+class CallStats {
+    private var latencyMillis = 0.0
+    private var errorRate = 0.0
+    private var samples = 0L
+
+    @Synchronized
+    fun record(millis: Long, error: Boolean) {
+        val errorValue = if (error) 1.0 else 0.0
+        if (samples == 0L) {
+            latencyMillis = millis.toDouble()
+            errorRate = errorValue
+        } else {
+            latencyMillis += ALPHA * (millis - latencyMillis)
+            errorRate += ALPHA * (errorValue - errorRate)
+        }
+        samples++
+    }
+
+    /**
+     * Lower is better. Nodes that have not been called yet score 0 so that they get tried.
+     * Each failure counts as [FAILURE_PENALTY_MILLIS] of latency, so a node that fails quickly never beats a slower healthy node.
+     */
+    @Synchronized
+    fun score(): Double {
+        return if (samples == 0L) 0.0 else latencyMillis + errorRate * FAILURE_PENALTY_MILLIS
+    }
+
+    @Synchronized
+    fun toJson(): JsonObject {
+        val jsonObject = JsonObject()
+        jsonObject.addProperty("latencyMillis", latencyMillis)
+        jsonObject.addProperty("errorRate", errorRate)
+        jsonObject.addProperty("calls", samples)
+        return jsonObject
+    }
+
+    companion object {
+        private const val ALPHA = 0.2
+        private const val FAILURE_PENALTY_MILLIS = 30000.0
+    }
+}
@@ -0,0 +1,96 @@
+package burst.pool.node
+
+import burst.kit.entity.BurstID
+import burst.pool.storage.config.PropertyService
+import burst.pool.storage.config.Props
+import io.reactivex.disposables.CompositeDisposable
+import io.reactivex.schedulers.Schedulers
+import org.slf4j.LoggerFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Submits nonces to the node that has been acknowledging them most reliably. If it has not acknowledged within its
+ * usual time (a configurable percentile of its recent acknowledgement times), or fails, the nonce is also sent to every other node.
+ */
+class HedgedNonceSubmitter(private val nodes: List<Node>, private val propertyService: PropertyService) : AutoCloseable {
+    private val hedgePercentile = propertyService.get(Props.nonceHedgePercentile)
+    private val inFlight = CompositeDisposable()
+
+    /**
+     * Nodes that have never acknowledged a nonce rank last, they only get nonces when hedging until they do.
+     * The others rank by their nonce submission stats, so that failing or timing out nodes lose their place.
+     */
+    private fun choosePrimary(): Node {
+        return nodes.minBy { node ->
+            if (node.nonceAckPercentile(50) == null) Double.MAX_VALUE else node.getCallStats(NodeSelector.SUBMIT_NONCE).score()
+        }!!
+    }
+
+    /**
+     * @param onAcknowledged Called once, with the deadline reported by the first node to acknowledge the nonce
+     * @param onFailed Called if every node it was sent to failed
+     */
+    fun submit(nonce: String, accountId: BurstID, onAcknowledged: (Long) -> Unit, onFailed: (Throwable) -> Unit) {
+        val primary = choosePrimary()
+        val others = nodes.filter { it !== primary }
+        val acknowledged = AtomicBoolean(false)
+        val hedging = AtomicBoolean(false)
+        // Only set once the hedges are counted in sentCount, so that a failure seeing it can't finish before they are sent
+        val hedged = AtomicBoolean(false)
+        val sentCount = AtomicInteger(1)
+        val failedCount = AtomicInteger(0)
+        // Everything still running for this nonce, disposed once a node acknowledges it
+        val submission = CompositeDisposable()
+        inFlight.add(submission)
+        val finish = {
+            inFlight.delete(submission)
+            submission.dispose()
+        }
+        lateinit var hedge: () -> Unit
+        val send = { node: Node ->
+            val startTime = System.currentTimeMillis()
+            submission.add(node.call(NodeSelector.SUBMIT_NONCE) { it.submitNonce(propertyService.get(Props.passphrase), nonce, accountId).timeout(SUBMIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) }
+                    .retry(propertyService.get(Props.submitNonceRetryCount).toLong())
+                    .subscribe({ deadline: Long ->
+                        node.recordNonceAck(System.currentTimeMillis() - startTime)
+                        if (acknowledged.compareAndSet(false, true)) {
+                            finish()
+                            onAcknowledged(deadline)
+                        }
+                    }, { t: Throwable ->
+                        logger.warn("Error submitting nonce to node {}", node, t)
+                        if (node === primary) hedge()
+                        val failed = failedCount.incrementAndGet()
+                        if ((hedged.get() || others.isEmpty()) && failed == sentCount.get()) {
+                            finish()
+                            onFailed(t)
+                        }
+                    }))
+        }
+        hedge = {
+            if (!acknowledged.get() && others.isNotEmpty() && hedging.compareAndSet(false, true)) {
+                logger.debug("Node {} has not acknowledged nonce, sending it to {} other nodes", primary, others.size)
+                sentCount.addAndGet(others.size)
+                hedged.set(true)
+                others.forEach { send(it) }
+            }
+        }
+        if (others.isNotEmpty()) {
+            val hedgeDelay = primary.nonceAckPercentile(hedgePercentile) ?: DEFAULT_HEDGE_DELAY_MILLIS
+            submission.add(Schedulers.computation().scheduleDirect({ hedge() }, hedgeDelay, TimeUnit.MILLISECONDS))
+        }
+        send(primary)
+    }
+
+    override fun close() {
+        inFlight.dispose()
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(HedgedNonceSubmitter::class.java)
+        private const val DEFAULT_HEDGE_DELAY_MILLIS = 1000L
+        private const val SUBMIT_TIMEOUT_MILLIS = 10000L
+    }
+}
@@ -0,0 +1,83 @@
+package burst.pool.node
+
+import burst.kit.service.BurstNodeService
+import burst.pool.metrics.LatencyStats
+import com.google.gson.JsonObject
+import io.reactivex.Single
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * A single configured node, as opposed to the composite [BurstNodeService] over all of them.
+ */
+class Node(val address: String, val service: BurstNodeService) {
+    private val ackTimes = LongArray(ACK_HISTORY_SIZE)
+    private var ackCount = 0
+    private val callStats = ConcurrentHashMap<String, CallStats>()
+    private val newBlockLag = LatencyStats()
+
+    fun getCallStats(callType: String): CallStats {
+        return callStats.computeIfAbsent(callType) { CallStats() }
+    }
+
+    /**
+     * Make a call to this node, recording its latency and whether it failed under [callType]
+     */
+    fun <T> call(callType: String, call: (BurstNodeService) -> Single<T>): Single<T> {
+        return Single.defer {
+            val stats = getCallStats(callType)
+            val startTime = System.nanoTime()
+            call(service)
+                    .doOnSuccess { stats.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), false) }
+                    .doOnError { stats.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), true) }
+        }
+    }
+
+    /**
+     * Record how long after the first node this node reported a new block, 0 if it was first
+     */
+    fun recordNewBlockLag(millis: Long) {
+        newBlockLag.record(TimeUnit.MILLISECONDS.toNanos(millis))
+    }
+
+    /**
+     * Record how long the node took to acknowledge a submitted nonce
+     */
+    @Synchronized
+    fun recordNonceAck(millis: Long) {
+        ackTimes[ackCount % ACK_HISTORY_SIZE] = millis
+        ackCount++
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return The given percentile of recent nonce acknowledgement times, or null if there are none
+     */
+    @Synchronized
+    fun nonceAckPercentile(percentile: Int): Long? {
+        val count = Math.min(ackCount, ACK_HISTORY_SIZE)
+        if (count == 0) return null
+        val sorted = Arrays.copyOf(ackTimes, count)
+        Arrays.sort(sorted)
+        return sorted[Math.min(count - 1, count * percentile / 100)]
+    }
+
+    fun toJson(): JsonObject {
+        val jsonObject = JsonObject()
+        jsonObject.addProperty("address", address)
+        val callsJson = JsonObject()
+        TreeMap(callStats).forEach { (callType, stats) -> callsJson.add(callType, stats.toJson()) }
+        jsonObject.add("calls", callsJson)
+        jsonObject.add("newBlockLag", newBlockLag.toJson())
+        return jsonObject
+    }
+
+    override fun toString(): String {
+        return address
+    }
+
+    companion object {
+        private const val ACK_HISTORY_SIZE = 64
+    }
+}
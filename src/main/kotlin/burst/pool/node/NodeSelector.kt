@@ -0,0 +1,37 @@
+package burst.pool.node
+
+import burst.kit.service.BurstNodeService
+import com.google.gson.JsonArray
+import io.reactivex.Single
+
+/**
+ * Routes each type of node call to the node with the lowest latency and error rate for that call type,
+ * falling back to the other nodes in order of preference if it fails.
+ */
+class NodeSelector(val nodes: List<Node>) {
+    fun <T> call(callType: String, call: (BurstNodeService) -> Single<T>): Single<T> {
+        return Single.defer {
+            val orderedNodes = nodes.sortedBy { it.getCallStats(callType).score() }
+            var single = orderedNodes[0].call(callType, call)
+            for (i in 1 until orderedNodes.size) {
+                single = single.onErrorResumeNext(orderedNodes[i].call(callType, call))
+            }
+            single
+        }
+    }
+
+    fun toJson(): JsonArray {
+        val jsonArray = JsonArray()
+        nodes.forEach { jsonArray.add(it.toJson()) }
+        return jsonArray
+    }
+
+    companion object {
+        const val GET_BLOCK = "getBlock"
+        const val GET_ACCOUNT = "getAccount"
+        const val GET_ACCOUNTS_WITH_REWARD_RECIPIENT = "getAccountsWithRewardRecipient"
+        const val GENERATE_MULTI_OUT_TRANSACTION = "generateMultiOutTransaction"
+        const val BROADCAST_TRANSACTION = "broadcastTransaction"
+        const val SUBMIT_NONCE = "submitNonce"
+    }
+}
@@ -5,10 +5,10 @@ import burst.kit.entity.BurstAddress
 import burst.kit.entity.BurstID
 import burst.kit.entity.BurstValue
 import burst.kit.entity.response.TransactionBroadcast
-import burst.kit.service.BurstNodeService
 import burst.pool.entity.Payout
 import burst.pool.miners.MinerTracker
 import burst.pool.miners.Payable
+import burst.pool.node.NodeSelector
 import burst.pool.storage.config.PropertyService
 import burst.pool.storage.config.Props
 import burst.pool.storage.persistent.StorageService
@@ -18,7 +18,7 @@ import java.nio.ByteBuffer
 import java.util.*
 import java.util.concurrent.atomic.AtomicReference
 
-class BurstPayoutService(private val nodeService: BurstNodeService, propertyService: PropertyService, private val minerTracker: MinerTracker) : AbstractPayoutService(propertyService), AutoCloseable {
+class BurstPayoutService(private val nodeSelector: NodeSelector, propertyService: PropertyService, private val minerTracker: MinerTracker) : AbstractPayoutService(propertyService), AutoCloseable {
     private val burstCrypto = BurstCrypto.getInstance()
     private val compositeDisposable = CompositeDisposable()
     override fun payOut(storageService: StorageService, payableMiners: Array<Payable>) {
@@ -41,7 +41,7 @@ class BurstPayoutService(private val nodeService: BurstNodeService, propertyServ
         }
         logger.info("{}", logMessage)
         val transactionId = AtomicReference<BurstID>()
-        compositeDisposable.add(nodeService.generateMultiOutTransaction(publicKey, transactionFee, 1440, recipients)
+        compositeDisposable.add(nodeSelector.call(NodeSelector.GENERATE_MULTI_OUT_TRANSACTION) { it.generateMultiOutTransaction(publicKey, transactionFee, 1440, recipients) }
                 .retry(propertyService.get(Props.payoutRetryCount).toLong())
                 .map { response -> burstCrypto.signTransaction(propertyService.get(Props.passphrase), response) }
                 .map { signedBytes ->
@@ -61,18 +61,19 @@ class BurstPayoutService(private val nodeService: BurstNodeService, propertyServ
                     signedBytes
                 }
                 .flatMap { signedBytes ->
-                    nodeService.broadcastTransaction(signedBytes)
+                    nodeSelector.call(NodeSelector.BROADCAST_TRANSACTION) { it.broadcastTransaction(signedBytes) }
                             .retry(propertyService.get(Props.payoutRetryCount).toLong())
                 }
                 .subscribe({ onPaidOut(storageService, transactionId.get(), payees, publicKey, transactionFee, 1440, transactionAttachment.array()) }) { throwable -> onPayoutError(throwable) })
     }
 
     private fun onPaidOut(storageService: StorageService, transactionID: BurstID, paidMiners: Map<Payable, BurstValue>, senderPublicKey: ByteArray, fee: BurstValue, deadline: Int, transactionAttachment: ByteArray) {
-        minerTracker.waitUntilNotProcessingBlock()
-        for ((key, value) in paidMiners) {
-            key.decreasePending(value)
+        minerTracker.whileNotProcessingBlock {
+            for ((key, value) in paidMiners) {
+                key.decreasePending(value)
+            }
+            storageService.addPayout(Payout(transactionID, senderPublicKey, fee, deadline, transactionAttachment))
         }
-        storageService.addPayout(Payout(transactionID, senderPublicKey, fee, deadline, transactionAttachment))
         logger.info("Paid out, transaction id {}", transactionID)
         payoutSemaphore.release()
     }
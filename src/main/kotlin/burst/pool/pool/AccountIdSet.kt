@@ -0,0 +1,72 @@
+package burst.pool.pool
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Immutable set of account IDs using open addressing over a primitive array, so that lookups do not allocate.
+ * Build a new set and swap it in rather than modifying an existing one.
+ *
+ * IDs that were looked up and not found are remembered in a small lossy cache, as accounts that have
+ * not set the pool as their reward recipient tend to keep submitting.
+ */
+class AccountIdSet(ids: LongArray) {
+    private val table: LongArray
+    private val mask: Int
+    private val containsZero: Boolean
+    private val negativeCache = AtomicLongArray(NEGATIVE_CACHE_SIZE)
+    val size: Int
+
+    fun contains(id: Long): Boolean {
+        // 0 marks an empty slot so it is tracked separately. This also makes 0 safe to use as the empty negative cache value.
+        if (id == 0L) return containsZero
+        val hash = hash(id)
+        val cacheIndex = (hash ushr 32).toInt() and (NEGATIVE_CACHE_SIZE - 1)
+        if (negativeCache.get(cacheIndex) == id) return false
+        var index = hash.toInt() and mask
+        while (true) {
+            val entry = table[index]
+            if (entry == id) return true
+            if (entry == 0L) break
+            index = (index + 1) and mask
+        }
+        negativeCache.set(cacheIndex, id)
+        return false
+    }
+
+    companion object {
+        private const val NEGATIVE_CACHE_SIZE = 1024
+        val EMPTY = AccountIdSet(LongArray(0))
+
+        private fun hash(id: Long): Long {
+            var h = id * -0x61c8864680b583ebL
+            h = h xor (h ushr 29)
+            return h
+        }
+    }
+
+    init {
+        // Keep the load factor below 0.5
+        val capacity = Integer.highestOneBit(Math.max(ids.size, 1) * 2) shl 1
+        table = LongArray(capacity)
+        mask = capacity - 1
+        var hasZero = false
+        var count = 0
+        for (id in ids) {
+            if (id == 0L) {
+                if (!hasZero) count++
+                hasZero = true
+                continue
+            }
+            var index = hash(id).toInt() and mask
+            while (table[index] != 0L && table[index] != id) {
+                index = (index + 1) and mask
+            }
+            if (table[index] == 0L) {
+                table[index] = id
+                count++
+            }
+        }
+        containsZero = hasZero
+        size = count
+    }
+}
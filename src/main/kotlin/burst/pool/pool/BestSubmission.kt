@@ -0,0 +1,8 @@
+package burst.pool.pool
+
+import java.math.BigInteger
+
+/**
+ * The best submission of a round together with its deadline. Immutable so that it can be replaced with a single compare-and-set.
+ */
+class BestSubmission(val submission: Submission, val deadline: BigInteger)
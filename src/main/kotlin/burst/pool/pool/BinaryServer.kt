@@ -0,0 +1,84 @@
+package burst.pool.pool
+
+import burst.kit.entity.BurstAddress
+import burst.kit.entity.BurstID
+import burst.pool.metrics.Metrics
+import burst.pool.net.NioConnection
+import burst.pool.net.NioServer
+import burst.pool.net.OrderedReplies
+import burst.pool.storage.config.PropertyService
+import burst.pool.storage.config.Props
+import org.slf4j.LoggerFactory
+import java.math.BigInteger
+import java.nio.ByteBuffer
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+
+/**
+ * Fixed-layout binary nonce submission over TCP, for miners that want to avoid the cost of HTTP and JSON.
+ *
+ * Each request is 24 bytes: account ID, nonce and block height as big-endian 64 bit integers (a height of 0 is not checked).
+ * Each reply is 8 bytes: the deadline, or one of the negative error codes in [SubmissionException].
+ * Requests may be pipelined, replies are sent in the same order as the requests.
+ */
+class BinaryServer(private val pool: Pool, propertyService: PropertyService) : NioServer(propertyService.get(Props.binaryServerPort), "binary-server", REQUEST_SIZE * MAX_BUFFERED_REQUESTS) {
+    override fun onConnected(connection: NioConnection) {
+        connection.attachment = OrderedReplies(connection)
+    }
+
+    override fun onRead(connection: NioConnection, buffer: ByteBuffer) {
+        val replies = connection.attachment as OrderedReplies
+        while (buffer.remaining() >= REQUEST_SIZE) {
+            val accountId = buffer.long
+            val nonce = buffer.long
+            val blockHeight = buffer.long
+            replies.append(handleRequest(accountId, nonce, blockHeight).thenApply { result ->
+                val reply = ByteBuffer.allocate(REPLY_SIZE)
+                reply.putLong(result)
+                reply.array()
+            })
+        }
+    }
+
+    private fun handleRequest(accountId: Long, nonce: Long, blockHeight: Long): CompletableFuture<Long> {
+        try {
+            if (blockHeight != 0L) {
+                pool.checkBlockHeight(blockHeight)
+            }
+        } catch (e: SubmissionException) {
+            return CompletableFuture.completedFuture(e.code)
+        }
+        val submission = Submission(BurstAddress.fromId(BurstID.fromLong(accountId)), toUnsigned(nonce))
+        return pool.checkNewSubmissionAsync(submission, USER_AGENT).handle { deadline, throwable ->
+            if (throwable == null) {
+                deadline.toLong()
+            } else {
+                val cause = if (throwable is CompletionException && throwable.cause != null) throwable.cause!! else throwable
+                if (cause is SubmissionException) {
+                    cause.code
+                } else {
+                    logger.warn("Error checking submission", cause)
+                    SubmissionException.ERROR_UNKNOWN
+                }
+            }
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(BinaryServer::class.java)
+        private const val REQUEST_SIZE = 24
+        private const val REPLY_SIZE = 8
+        private const val MAX_BUFFERED_REQUESTS = 64
+        private const val USER_AGENT = "binary"
+        private val TWO_TO_THE_64 = BigInteger.ONE.shiftLeft(64)
+
+        private fun toUnsigned(value: Long): BigInteger {
+            val bigInteger = BigInteger.valueOf(value)
+            return if (value < 0) bigInteger.add(TWO_TO_THE_64) else bigInteger
+        }
+    }
+
+    init {
+        Metrics.gauge("binaryConnections") { connectionCount }
+    }
+}
@@ -0,0 +1,104 @@
+package burst.pool.pool
+
+/**
+ * Remembers the deadline of each (account ID, nonce) pair submitted in a round, so that resubmissions
+ * do not have to be verified again. Stops remembering new pairs once [maxEntries] is reached.
+ *
+ * Open addressing over primitive arrays, split into segments to reduce lock contention.
+ * Segments start small and grow as entries are added, so that a round without submissions costs next to nothing.
+ */
+class DuplicateSubmissionFilter(val maxEntries: Int) {
+    private val segments = Array(SEGMENT_COUNT) { Segment(Math.max(1, maxEntries / SEGMENT_COUNT)) }
+
+    /**
+     * @return The deadline previously stored for this pair, or [NOT_FOUND]
+     */
+    fun get(accountId: Long, nonce: Long): Long {
+        val hash = hash(accountId, nonce)
+        return segments[hash and (SEGMENT_COUNT - 1)].get(accountId, nonce, hash)
+    }
+
+    /**
+     * @param deadline Must not be negative
+     */
+    fun put(accountId: Long, nonce: Long, deadline: Long) {
+        require(deadline >= 0) { "Deadline must not be negative" }
+        val hash = hash(accountId, nonce)
+        segments[hash and (SEGMENT_COUNT - 1)].put(accountId, nonce, deadline, hash)
+    }
+
+    private class Segment(private val maxEntries: Int) {
+        // Keep the load factor at or below 0.5
+        private val maxCapacity = Integer.highestOneBit(maxEntries * 2 - 1) shl 1
+        private var mask = 0
+        private var accountIds = LongArray(0)
+        private var nonces = LongArray(0)
+        private var deadlines = LongArray(0)
+        private var size = 0
+
+        @Synchronized
+        fun get(accountId: Long, nonce: Long, hash: Int): Long {
+            var index = (hash ushr SEGMENT_BITS) and mask
+            while (deadlines[index] != NOT_FOUND) {
+                if (accountIds[index] == accountId && nonces[index] == nonce) return deadlines[index]
+                index = (index + 1) and mask
+            }
+            return NOT_FOUND
+        }
+
+        @Synchronized
+        fun put(accountId: Long, nonce: Long, deadline: Long, hash: Int) {
+            var index = (hash ushr SEGMENT_BITS) and mask
+            while (deadlines[index] != NOT_FOUND) {
+                if (accountIds[index] == accountId && nonces[index] == nonce) return
+                index = (index + 1) and mask
+            }
+            if (size >= maxEntries) return
+            if ((size + 1) * 2 > deadlines.size) {
+                resize(deadlines.size * 2)
+                index = (hash ushr SEGMENT_BITS) and mask
+                while (deadlines[index] != NOT_FOUND) index = (index + 1) and mask
+            }
+            accountIds[index] = accountId
+            nonces[index] = nonce
+            deadlines[index] = deadline
+            size++
+        }
+
+        private fun resize(capacity: Int) {
+            val oldAccountIds = accountIds
+            val oldNonces = nonces
+            val oldDeadlines = deadlines
+            mask = capacity - 1
+            accountIds = LongArray(capacity)
+            nonces = LongArray(capacity)
+            deadlines = LongArray(capacity) { NOT_FOUND }
+            for (i in oldDeadlines.indices) {
+                if (oldDeadlines[i] == NOT_FOUND) continue
+                var index = (hash(oldAccountIds[i], oldNonces[i]) ushr SEGMENT_BITS) and mask
+                while (deadlines[index] != NOT_FOUND) index = (index + 1) and mask
+                accountIds[index] = oldAccountIds[i]
+                nonces[index] = oldNonces[i]
+                deadlines[index] = oldDeadlines[i]
+            }
+        }
+
+        init {
+            resize(Math.min(INITIAL_SEGMENT_CAPACITY, maxCapacity))
+        }
+    }
+
+    companion object {
+        const val NOT_FOUND = -1L
+        private const val SEGMENT_BITS = 4
+        private const val SEGMENT_COUNT = 1 shl SEGMENT_BITS
+        private const val INITIAL_SEGMENT_CAPACITY = 64
+
+        private fun hash(accountId: Long, nonce: Long): Int {
+            var h = accountId * -0x61c8864680b583ebL + nonce
+            h = (h xor (h ushr 33)) * -0xae502812aa7333L
+            h = h xor (h ushr 33)
+            return h.toInt()
+        }
+    }
+}
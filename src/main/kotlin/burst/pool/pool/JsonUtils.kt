@@ -0,0 +1,16 @@
+package burst.pool.pool
+
+import com.google.gson.JsonObject
+
+/**
+ * Helpers for reading the JSON requests miners send to [Server] and [PushServer]
+ */
+internal object JsonUtils {
+    /**
+     * @return The member as a string, or null if it is missing or null
+     */
+    fun getString(jsonObject: JsonObject, name: String): String? {
+        val element = jsonObject.get(name)
+        return if (element == null || element.isJsonNull) null else element.asString
+    }
+}
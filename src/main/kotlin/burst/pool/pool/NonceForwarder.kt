@@ -0,0 +1,71 @@
+package burst.pool.pool
+
+import burst.pool.metrics.Metrics
+import burst.pool.node.HedgedNonceSubmitter
+import burst.pool.node.Node
+import burst.pool.storage.config.PropertyService
+import burst.pool.storage.config.Props
+import io.reactivex.schedulers.Schedulers
+import org.slf4j.LoggerFactory
+import java.time.Instant
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Forwards the round's best nonce to the node. Improvements arriving within a short window of each other
+ * are coalesced so that only the best of them is sent, unless waiting would risk the deadline expiring.
+ */
+class NonceForwarder(nodes: List<Node>, propertyService: PropertyService) : AutoCloseable {
+    private val submitter = HedgedNonceSubmitter(nodes, propertyService)
+    private val windowMillis = propertyService.get(Props.nonceForwardDelayMillis).toLong()
+    private val pending = AtomicReference<PendingNonce?>()
+    private val flushScheduled = AtomicBoolean(false)
+    private val forwardLatency = Metrics.latency("nonceForwardLatency")
+
+    /**
+     * @param roundStart When the round started, used to work out how long we can wait before the deadline expires
+     */
+    fun forward(blockHeight: Long, roundStart: Instant, bestSubmission: BestSubmission) {
+        val nonce = PendingNonce(blockHeight, bestSubmission, System.nanoTime())
+        pending.accumulateAndGet(nonce) { current, candidate -> if (current == null || candidate.isBetterThan(current)) candidate else current }
+        val millisUntilDeadline = roundStart.plusSeconds(bestSubmission.deadline.toLong()).toEpochMilli() - System.currentTimeMillis()
+        if (windowMillis <= 0 || millisUntilDeadline <= windowMillis * 2) {
+            flush()
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            Schedulers.computation().scheduleDirect({ flush() }, windowMillis, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private fun flush() {
+        flushScheduled.set(false)
+        val nonce = pending.getAndSet(null) ?: return
+        val submission = nonce.bestSubmission.submission
+        submitter.submit(submission.nonce.toString(), submission.miner.burstID, { deadline -> // TODO burstkit4j accept nonce as bigint
+            forwardLatency.recordSince(nonce.foundTime)
+            onNonceSubmitted(deadline)
+        }, { t -> onSubmitNonceError(t) })
+    }
+
+    private fun onNonceSubmitted(deadline: Long) {
+        logger.debug("Submitted nonce to node. Deadline is {}", java.lang.Long.toUnsignedString(deadline))
+    }
+
+    private fun onSubmitNonceError(t: Throwable) {
+        logger.error("Error submitting nonce to node", t)
+    }
+
+    override fun close() {
+        submitter.close()
+    }
+
+    private class PendingNonce(val blockHeight: Long, val bestSubmission: BestSubmission, val foundTime: Long) {
+        fun isBetterThan(other: PendingNonce): Boolean {
+            return blockHeight > other.blockHeight || blockHeight == other.blockHeight && bestSubmission.deadline < other.bestSubmission.deadline
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(NonceForwarder::class.java)
+    }
+}
@@ -4,8 +4,11 @@ import burst.kit.crypto.BurstCrypto
 import burst.kit.entity.BurstAddress
 import burst.kit.entity.response.MiningInfo
 import burst.kit.entity.response.http.MiningInfoResponse
-import burst.kit.service.BurstNodeService
+import burst.pool.miners.Deadline
+import burst.pool.miners.DeadlineQueue
 import burst.pool.miners.MinerTracker
+import burst.pool.node.Node
+import burst.pool.node.NodeSelector
 import burst.pool.payout.PayoutService
 import burst.pool.storage.config.PropertyService
 import burst.pool.storage.config.Props
@@ -21,24 +24,28 @@ import io.reactivex.functions.Consumer
 import io.reactivex.schedulers.Schedulers
 import org.slf4j.LoggerFactory
 import java.math.BigInteger
+import java.nio.charset.StandardCharsets
+import java.time.Duration
 import java.time.Instant
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Future
 import java.util.concurrent.Semaphore
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicReference
 
-class Pool(private val nodeService: BurstNodeService, private val storageService: StorageService, private val propertyService: PropertyService, private val minerTracker: MinerTracker, private val payoutService: PayoutService) {
+class Pool(private val nodeSelector: NodeSelector, private val storageService: StorageService, private val propertyService: PropertyService, private val minerTracker: MinerTracker, private val payoutService: PayoutService) : AutoCloseable {
     private val burstCrypto = BurstCrypto.getInstance()
     private val disposables = CompositeDisposable()
+    private val deadlineQueue = DeadlineQueue(storageService, minerTracker, propertyService)
+    private val verificationExecutor = VerificationExecutor(propertyService)
+    private val nonceForwarder = NonceForwarder(nodeSelector.nodes, propertyService)
     private val processBlockSemaphore = Semaphore(1)
-    private val resetRoundSemaphore = Semaphore(1)
-    private val processDeadlineSemaphore = Semaphore(1)
     // Variables
-    private val roundStartTime = AtomicReference(Instant.now())
-    private val bestSubmission = AtomicReference<Submission?>()
-    private val bestDeadline = AtomicReference<BigInteger>()
-    private val miningInfo = AtomicReference<MiningInfo?>()
-    private val myRewardRecipients: MutableSet<BurstAddress> = HashSet()
+    private val round = AtomicReference(Round(0, null, null, Instant.now(), null, DuplicateSubmissionFilter(propertyService.get(Props.duplicateFilterCapacity))))
+    @Volatile
+    private var myRewardRecipients = AccountIdSet.EMPTY
+    private val roundDocuments = AtomicReference<RoundDocuments?>()
     private fun processBlocksThread(): Disposable {
         return Observable.interval(0, 1, TimeUnit.SECONDS)
                 .flatMapCompletable {
@@ -61,20 +68,48 @@ class Pool(private val nodeService: BurstNodeService, private val storageService
     }
 
     private fun refreshMiningInfoThread(): Disposable {
-        return nodeService.miningInfo
-                .retry()
-                .subscribeOn(Schedulers.io())
-                .subscribe({ newMiningInfo: MiningInfo -> onMiningInfo(newMiningInfo) }) { e -> onMiningInfoError(e, true) }
+        // Listen to every node so that the round switches as soon as any of them sees the new block
+        return Observable.merge(nodeSelector.nodes.map { node ->
+            node.service.miningInfo
+                    .distinctUntilChanged { a: MiningInfo, b: MiningInfo -> isSameBlock(a, b) }
+                    .map { newMiningInfo -> Pair(node, newMiningInfo) }
+                    .retry()
+                    .subscribeOn(Schedulers.io())
+        })
+                .subscribe({ (node, newMiningInfo) -> onMiningInfo(node, newMiningInfo) }) { e -> onMiningInfoError(e, true) }
     }
 
-    private fun onMiningInfo(newMiningInfo: MiningInfo) {
-        if (miningInfo.get() == null || !Arrays.equals(miningInfo.get()!!.generationSignature, newMiningInfo.generationSignature)
-                || miningInfo.get()!!.height != newMiningInfo.height) {
-            logger.info("NEW BLOCK (block " + newMiningInfo.height + ", gensig " + burstCrypto.toHexString(newMiningInfo.generationSignature) + ", diff " + newMiningInfo.baseTarget + ")")
-            resetRound(newMiningInfo)
+    private fun onMiningInfo(node: Node, newMiningInfo: MiningInfo) {
+        while (true) {
+            val currentRound = round.get()
+            val miningInfo = currentRound.miningInfo
+            if (miningInfo != null && isSameBlock(miningInfo, newMiningInfo)) {
+                // Another node got here first
+                if (node !== currentRound.source) {
+                    node.recordNewBlockLag(Duration.between(currentRound.startTime, Instant.now()).toMillis())
+                }
+                return
+            }
+            // Only the node that reported the current block may take the round backwards or onto a fork at the same height, otherwise late reports from slower nodes would reset it
+            if (miningInfo != null && newMiningInfo.height <= miningInfo.height && node !== currentRound.source) {
+                return
+            }
+            // In-flight submissions for the previous round will notice the new epoch and be rejected.
+            val newRound = currentRound.next(newMiningInfo, node)
+            if (round.compareAndSet(currentRound, newRound)) {
+                node.recordNewBlockLag(0)
+                currentRound.nextRound.complete(newRound)
+                logger.info("NEW BLOCK (block " + newMiningInfo.height + ", gensig " + burstCrypto.toHexString(newMiningInfo.generationSignature) + ", diff " + newMiningInfo.baseTarget + ", from " + node + ")")
+                refreshRewardRecipients()
+                return
+            }
         }
     }
 
+    private fun isSameBlock(a: MiningInfo, b: MiningInfo): Boolean {
+        return a.height == b.height && Arrays.equals(a.generationSignature, b.generationSignature)
+    }
+
     private fun onMiningInfoError(throwable: Throwable, fatal: Boolean) {
         if (fatal) {
             logger.error("Fatal error fetching mining info (Thread now shutdown)", throwable)
@@ -87,7 +122,8 @@ class Pool(private val nodeService: BurstNodeService, private val storageService
         return Completable.fromAction {
             var transactionalStorageService: StorageService? = null
             try {
-                if (miningInfo.get() == null || processBlockSemaphore.availablePermits() == 0 || miningInfo.get()!!.height - 1 <= storageService.lastProcessedBlock + propertyService.get(Props.processLag)) {
+                val miningInfo = round.get().miningInfo
+                if (miningInfo == null || processBlockSemaphore.availablePermits() == 0 || miningInfo.height - 1 <= storageService.lastProcessedBlock + propertyService.get(Props.processLag)) {
                     return@fromAction
                 }
                 try {
@@ -95,6 +131,10 @@ class Pool(private val nodeService: BurstNodeService, private val storageService
                 } catch (e: InterruptedException) {
                     Thread.currentThread().interrupt()
                 }
+                // Make sure all deadlines submitted so far have been stored before we use them
+                if (!deadlineQueue.flush()) {
+                    logger.error("Some submitted deadlines could not be stored, capacity estimates will be low for the affected miners")
+                }
                 transactionalStorageService = try {
                     storageService.beginTransaction()
                 } catch (e: Exception) {
@@ -118,7 +158,7 @@ class Pool(private val nodeService: BurstNodeService, private val storageService
                     onProcessedBlock(transactionalStorageService, false)
                     return@fromAction
                 }
-                val block = nodeService.getBlock(transactionalStorageService.lastProcessedBlock + 1).blockingGet()
+                val block = nodeSelector.call(NodeSelector.GET_BLOCK) { it.getBlock(transactionalStorageService.lastProcessedBlock + 1) }.blockingGet()
                 val submissions: List<Submission> = transactionalStorageService.getBestSubmissionsForBlock(block.height.toLong())
                 var won = false
                 if (submissions.isNotEmpty()) {
@@ -131,7 +171,7 @@ class Pool(private val nodeService: BurstNodeService, private val storageService
                 if (won) {
                     minerTracker.onBlockWon(transactionalStorageService, transactionalStorageService.lastProcessedBlock + 1.toLong(), block.id, block.nonce, block.generator, block.blockReward.add(block.totalFee), fastBlocks)
                 } else {
-                    if (myRewardRecipients.contains(block.generator)) {
+                    if (myRewardRecipients.contains(block.generator.burstID.signedLongId)) {
                         logger.error("Our miner forged but did not detect block won. Height " + block.height)
                     }
                     minerTracker.onBlockNotWon(transactionalStorageService, transactionalStorageService.lastProcessedBlock + 1.toLong(), fastBlocks)
@@ -169,127 +209,301 @@ class Pool(private val nodeService: BurstNodeService, private val storageService
         }
     }
 
-    private fun resetRound(newMiningInfo: MiningInfo?) { // Traffic flow - we want to stop new requests but let old ones finish before we go ahead.
-        try { // Lock the reset round semaphore to stop accepting new requests
-            resetRoundSemaphore.acquire()
-            // Wait for all requests to be processed
-            while (processDeadlineSemaphore.queueLength > 0) {
-                Thread.sleep(1)
+    private fun refreshRewardRecipients() {
+        disposables.add(nodeSelector.call(NodeSelector.GET_ACCOUNTS_WITH_REWARD_RECIPIENT) { it.getAccountsWithRewardRecipient(burstCrypto.getBurstAddressFromPassphrase(propertyService.get(Props.passphrase))) }
+                .subscribe({ rewardRecipients: Array<BurstAddress> -> onRewardRecipients(rewardRecipients) }) { t: Throwable -> onRewardRecipientsError(t) })
+    }
+
+    /**
+     * Parses a submission as passed by miners. The block height is optional, but if given must match the current round.
+     */
+    @Throws(SubmissionException::class)
+    fun parseSubmission(accountIdString: String?, nonceString: String?, heightString: String?): Submission {
+        val nonce = try {
+            BigInteger(nonceString ?: throw SubmissionException("Missing Nonce", SubmissionException.ERROR_MALFORMED))
+        } catch (e: NumberFormatException) {
+            throw SubmissionException("Malformed Nonce", SubmissionException.ERROR_MALFORMED)
+        }
+        val accountId = BurstAddress.fromEither(accountIdString ?: throw SubmissionException("Missing Account ID", SubmissionException.ERROR_MALFORMED)) ?: throw SubmissionException("Malformed Account ID", SubmissionException.ERROR_MALFORMED)
+        if (!heightString.isNullOrBlank()) {
+            val blockHeight = try {
+                java.lang.Long.parseUnsignedLong(heightString)
+            } catch (e: NumberFormatException) {
+                throw SubmissionException("Malformed Block Height", SubmissionException.ERROR_MALFORMED)
             }
-            // Lock the process block semaphore as we are going to be modifying bestSubmission
-            processDeadlineSemaphore.acquire()
-        } catch (e: InterruptedException) {
-            Thread.currentThread().interrupt()
-            return
+            checkBlockHeight(blockHeight)
+        }
+        return Submission(accountId, nonce)
+    }
+
+    @Throws(SubmissionException::class)
+    fun checkBlockHeight(blockHeight: Long) {
+        val miningInfo = getMiningInfo() ?: throw SubmissionException("Cannot submit, new round starting", SubmissionException.ERROR_ROUND_CHANGED)
+        if (blockHeight != miningInfo.height) {
+            throw SubmissionException("Given block height does not match current round height", SubmissionException.ERROR_WRONG_HEIGHT)
         }
-        bestSubmission.set(null)
-        bestDeadline.set(BigInteger.valueOf(Long.MAX_VALUE))
-        disposables.add(nodeService.getAccountsWithRewardRecipient(burstCrypto.getBurstAddressFromPassphrase(propertyService.get(Props.passphrase)))
-                .subscribe({ rewardRecipients: Array<BurstAddress> -> onRewardRecipients(rewardRecipients) }) { t: Throwable -> onRewardRecipientsError(t) })
-        roundStartTime.set(Instant.now())
-        miningInfo.set(newMiningInfo)
-        // Unlock to signal we have finished modifying bestSubmission
-        processDeadlineSemaphore.release()
-        // Unlock to start accepting requests again
-        resetRoundSemaphore.release()
     }
 
     @Throws(SubmissionException::class)
     fun checkNewSubmission(submission: Submission, userAgent: String?): BigInteger {
-        if (miningInfo.get() == null) {
-            throw SubmissionException("Pool does not have mining info")
+        // Tag the submission with the round it started in
+        val localRound = round.get()
+        val verifiedSubmission = verificationExecutor.execute { verifySubmission(localRound, submission) }
+        if (!verifiedSubmission.duplicate) {
+            updateBestSubmission(localRound.epoch, BestSubmission(submission, verifiedSubmission.deadline))
+            queueDeadline(localRound, verifiedSubmission, userAgent)
+            rememberSubmission(localRound, verifiedSubmission)
         }
-        if (!myRewardRecipients.contains(submission.miner)) {
-            throw SubmissionException("Reward recipient not set to pool")
+        return verifiedSubmission.deadline
+    }
+
+    /**
+     * Like [checkNewSubmission] but without blocking the calling thread, for callers that must not block such as the NIO servers.
+     * @return The deadline, or completes exceptionally with the reason the submission was rejected
+     */
+    fun checkNewSubmissionAsync(submission: Submission, userAgent: String?): CompletableFuture<BigInteger> {
+        val localRound = round.get()
+        val result = CompletableFuture<BigInteger>()
+        try {
+            verificationExecutor.submit {
+                try {
+                    val verifiedSubmission = verifySubmission(localRound, submission)
+                    if (!verifiedSubmission.duplicate) {
+                        updateBestSubmission(localRound.epoch, BestSubmission(submission, verifiedSubmission.deadline))
+                        // Queueing the deadline never blocks, a full queue rejects the submission instead of holding this verifier thread
+                        queueDeadline(localRound, verifiedSubmission, userAgent)
+                        rememberSubmission(localRound, verifiedSubmission)
+                    }
+                    result.complete(verifiedSubmission.deadline)
+                } catch (e: Exception) {
+                    result.completeExceptionally(e)
+                }
+            }
+        } catch (e: SubmissionException) {
+            result.completeExceptionally(e)
         }
-        // If we are resetting the request must be for the previous round and no longer matters - reject
-        if (resetRoundSemaphore.availablePermits() < 0) {
-            throw SubmissionException("Cannot submit - new round starting")
+        return result
+    }
+
+    /**
+     * Verifies a batch of submissions in parallel on the verification executor and then applies the best of them to the round in one step.
+     * @return The result for each submission, in the same order as [submissions]
+     */
+    fun checkNewSubmissions(submissions: List<Submission>, userAgent: String?): List<NonceSubmissionResponse> {
+        val localRound = round.get()
+        val verifiedSubmissions = arrayOfNulls<VerifiedSubmission>(submissions.size)
+        val responses = arrayOfNulls<NonceSubmissionResponse>(submissions.size)
+        val futures = arrayOfNulls<Future<VerifiedSubmission>>(submissions.size)
+        // Identical entries are only verified and queued once, and answered like the first of them
+        val firstIndices = IntArray(submissions.size)
+        val seen = HashMap<Pair<Long, BigInteger>, Int>()
+        for (i in submissions.indices) {
+            firstIndices[i] = seen.getOrPut(Pair(submissions[i].miner.burstID.signedLongId, submissions[i].nonce)) { i }
+            if (firstIndices[i] != i) continue
+            try {
+                futures[i] = verificationExecutor.submit { verifySubmission(localRound, submissions[i]) }
+            } catch (e: SubmissionException) {
+                responses[i] = NonceSubmissionResponse(e.message, null)
+            }
+        }
+        for (i in submissions.indices) {
+            val future = futures[i] ?: continue
+            try {
+                verifiedSubmissions[i] = verificationExecutor.getResult(future)
+            } catch (e: SubmissionException) {
+                responses[i] = NonceSubmissionResponse(e.message, null)
+            }
+        }
+        val best = verifiedSubmissions.filterNotNull().filter { !it.duplicate }.minBy { it.deadline }
+        if (best != null) {
+            try {
+                updateBestSubmission(localRound.epoch, BestSubmission(best.submission, best.deadline))
+            } catch (e: SubmissionException) {
+                // Entries that already failed keep their own reason
+                for (i in submissions.indices) {
+                    if (verifiedSubmissions[firstIndices[i]] != null) responses[i] = NonceSubmissionResponse(e.message, null)
+                    else if (firstIndices[i] != i) responses[i] = responses[firstIndices[i]]
+                }
+                return responses.map { it!! }
+            }
+        }
+        for (i in submissions.indices) {
+            if (firstIndices[i] != i) {
+                responses[i] = responses[firstIndices[i]]
+                continue
+            }
+            val verifiedSubmission = verifiedSubmissions[i] ?: continue
+            responses[i] = try {
+                if (!verifiedSubmission.duplicate) {
+                    queueDeadline(localRound, verifiedSubmission, userAgent)
+                    rememberSubmission(localRound, verifiedSubmission)
+                }
+                NonceSubmissionResponse("success", verifiedSubmission.deadline)
+            } catch (e: SubmissionException) {
+                NonceSubmissionResponse(e.message, null)
+            }
+        }
+        return responses.map { it!! }
+    }
+
+    @Throws(SubmissionException::class)
+    private fun verifySubmission(localRound: Round, submission: Submission): VerifiedSubmission {
+        val localMiningInfo = localRound.miningInfo ?: throw SubmissionException("Pool does not have mining info", SubmissionException.ERROR_ROUND_CHANGED)
+        val accountId = submission.miner.burstID.signedLongId
+        if (!myRewardRecipients.contains(accountId)) {
+            throw SubmissionException("Reward recipient not set to pool", SubmissionException.ERROR_REWARD_RECIPIENT)
+        }
+        if (submission.nonce.signum() < 0 || submission.nonce.bitLength() > 64) {
+            throw SubmissionException("Malformed Nonce", SubmissionException.ERROR_MALFORMED)
+        }
+        val nonce = submission.nonce.toLong()
+        // Miners often resubmit the same nonce, in which case we already know the deadline
+        val previousDeadline = localRound.duplicateFilter.get(accountId, nonce)
+        if (previousDeadline != DuplicateSubmissionFilter.NOT_FOUND) {
+            logger.debug("Duplicate submission from {} of nonce {}", submission.miner, submission.nonce)
+            return VerifiedSubmission(submission, BigInteger.valueOf(previousDeadline), true)
         }
-        val localMiningInfo = miningInfo.get()
         // TODO poc2 switch
-        val deadline = burstCrypto.calculateDeadline(submission.miner, java.lang.Long.parseUnsignedLong(submission.nonce.toString()), localMiningInfo!!.generationSignature, burstCrypto.calculateScoop(localMiningInfo.generationSignature, localMiningInfo.height), localMiningInfo.baseTarget, 2)
+        val deadline = burstCrypto.calculateDeadline(submission.miner, nonce, localMiningInfo.generationSignature, burstCrypto.calculateScoop(localMiningInfo.generationSignature, localMiningInfo.height), localMiningInfo.baseTarget, 2)
         val maxDeadline = BigInteger.valueOf(propertyService.get(Props.maxDeadline))
         if (deadline > maxDeadline) {
-            throw SubmissionException("Deadline exceeds maximum allowed deadline (Submitted $deadline, maximum is $maxDeadline)")
+            throw SubmissionException("Deadline exceeds maximum allowed deadline (Submitted $deadline, maximum is $maxDeadline)", SubmissionException.ERROR_DEADLINE_TOO_HIGH)
         }
         if (logger.isDebugEnabled) {
             logger.debug("New submission from {} of nonce {}, calculated deadline {} seconds.", submission.miner, submission.nonce, deadline.toString())
         }
-        return try {
-            try {
-                processDeadlineSemaphore.acquire()
-            } catch (e: InterruptedException) {
-                Thread.currentThread().interrupt()
-                throw SubmissionException("Server Interrupted")
+        return VerifiedSubmission(submission, deadline, false)
+    }
+
+    /**
+     * Remembers the deadline of a submission so that resubmissions skip verification.
+     * Only called once the submission has been accepted, otherwise a rejected submission would be reported as successful when retried.
+     */
+    private fun rememberSubmission(localRound: Round, verifiedSubmission: VerifiedSubmission) {
+        val submission = verifiedSubmission.submission
+        localRound.duplicateFilter.put(submission.miner.burstID.signedLongId, submission.nonce.toLong(), verifiedSubmission.deadline.toLong())
+    }
+
+    @Throws(SubmissionException::class)
+    private fun queueDeadline(localRound: Round, verifiedSubmission: VerifiedSubmission, userAgent: String?) {
+        // Most submissions are not a miner's best, those would not be stored anyway so don't bother queueing them
+        val accountId = verifiedSubmission.submission.miner.burstID.signedLongId
+        val deadline = verifiedSubmission.deadline.toLong()
+        if (!localRound.isMinerBestDeadline(accountId, deadline)) {
+            return
+        }
+        val localMiningInfo = localRound.miningInfo!!
+        deadlineQueue.submit(verifiedSubmission.submission.miner, Deadline(verifiedSubmission.deadline, BigInteger.valueOf(localMiningInfo.baseTarget), localMiningInfo.height), userAgent)
+        // Only once queued, so that a deadline the queue rejected is queued again when retried
+        localRound.updateMinerBestDeadline(accountId, deadline)
+    }
+
+    @Throws(SubmissionException::class)
+    private fun updateBestSubmission(epoch: Long, candidate: BestSubmission) {
+        while (true) {
+            val currentRound = round.get()
+            // If the round has changed the submission was for the previous round and no longer matters - reject
+            if (currentRound.epoch != epoch) {
+                throw SubmissionException("Cannot submit - new round starting", SubmissionException.ERROR_ROUND_CHANGED)
             }
-            if (bestSubmission.get() != null) {
+            val currentBest = currentRound.bestSubmission
+            if (currentBest != null) {
                 if (logger.isDebugEnabled) {
-                    logger.debug("Best deadline is {}, new deadline is {}", bestDeadline.get(), deadline)
+                    logger.debug("Best deadline is {}, new deadline is {}", currentBest.deadline, candidate.deadline)
                 }
-                if (deadline < bestDeadline.get()) {
-                    logger.debug("Newer deadline is better! Submitting...")
-                    onNewBestDeadline(miningInfo.get()!!.height, submission, deadline)
+                if (candidate.deadline >= currentBest.deadline) {
+                    return
                 }
-            } else {
-                logger.debug("This is the first deadline, submitting...")
-                onNewBestDeadline(miningInfo.get()!!.height, submission, deadline)
             }
-            minerTracker.onMinerSubmittedDeadline(storageService, submission.miner, deadline, BigInteger.valueOf(miningInfo.get()!!.baseTarget), miningInfo.get()!!.height, userAgent)
-            deadline
-        } finally {
-            processDeadlineSemaphore.release()
+            if (round.compareAndSet(currentRound, currentRound.withBestSubmission(candidate))) {
+                logger.debug(if (currentBest == null) "This is the first deadline, submitting..." else "Newer deadline is better! Submitting...")
+                onNewBestDeadline(currentRound, candidate)
+                return
+            }
+            // Another submission changed the best or the round changed, try again
         }
     }
 
-    private fun onNewBestDeadline(blockHeight: Long, submission: Submission, deadline: BigInteger) {
-        bestSubmission.set(submission)
-        bestDeadline.set(deadline)
-        submitDeadline(submission)
-        storageService.addBestSubmissionForBlock(blockHeight, StoredSubmission(submission.miner, submission.nonce, deadline.toLong()))
-    }
-
-    private fun submitDeadline(submission: Submission) {
-        disposables.add(nodeService.submitNonce(propertyService.get(Props.passphrase), submission.nonce.toString(), submission.miner.burstID) // TODO burstkit4j accept nonce as bigint
-                .retry(propertyService.get(Props.submitNonceRetryCount).toLong())
-                .subscribe({ deadline: Long -> onNonceSubmitted(deadline) }, { t: Throwable -> onSubmitNonceError(t) }))
+    private fun onNewBestDeadline(localRound: Round, best: BestSubmission) {
+        val blockHeight = localRound.miningInfo!!.height
+        nonceForwarder.forward(blockHeight, localRound.startTime, best)
+        storageService.addBestSubmissionForBlock(blockHeight, StoredSubmission(best.submission.miner, best.submission.nonce, best.deadline.toLong()))
     }
 
     private fun onRewardRecipients(rewardRecipients: Array<BurstAddress>) {
-        myRewardRecipients.clear()
-        myRewardRecipients.addAll(Arrays.asList(*rewardRecipients))
+        // Build the new set before publishing it so that submissions never see a partially filled set
+        myRewardRecipients = AccountIdSet(LongArray(rewardRecipients.size) { rewardRecipients[it].burstID.signedLongId })
     }
 
     private fun onRewardRecipientsError(t: Throwable) {
         logger.error("Error fetching pool's reward recipients", t)
     }
 
-    private fun onNonceSubmitted(deadline: Long) {
-        logger.debug("Submitted nonce to node. Deadline is {}", java.lang.Long.toUnsignedString(deadline))
+    fun getMiningInfo(): MiningInfo? {
+        return round.get().miningInfo
     }
 
-    private fun onSubmitNonceError(t: Throwable) {
-        logger.error("Error submitting nonce to node", t)
+    /**
+     * @param height The height the caller already has mining info for, or null to only compare [generationSignature]
+     * @param generationSignature The generation signature the caller already has, or null to only compare [height]
+     * @return A future that completes once the pool is no longer on the given block, which is already complete if it isn't now
+     */
+    fun awaitNewBlock(height: Long?, generationSignature: ByteArray?): CompletableFuture<Round> {
+        val currentRound = round.get()
+        val miningInfo = currentRound.miningInfo ?: return currentRound.nextRound
+        if ((height != null && height != miningInfo.height) || (generationSignature != null && !Arrays.equals(generationSignature, miningInfo.generationSignature))) {
+            return CompletableFuture.completedFuture(currentRound)
+        }
+        return currentRound.nextRound
     }
 
-    fun getMiningInfo(): MiningInfo? {
-        return miningInfo.get()
+    /**
+     * @return The serialized round documents for the current round, built only if the round or its best submission changed since the last call
+     */
+    fun getRoundDocuments(gson: Gson): RoundDocuments {
+        val currentRound = round.get()
+        val cached = roundDocuments.get()
+        if (cached != null && cached.round === currentRound) {
+            return cached
+        }
+        // A new best submission doesn't change the mining info, so keep that document for the whole round
+        val documents = if (cached != null && cached.round.epoch == currentRound.epoch) {
+            RoundDocuments(currentRound, cached.miningInfo, cached.miningInfoETag, getCurrentRoundInfo(gson, currentRound).toString().toByteArray(StandardCharsets.UTF_8))
+        } else {
+            buildRoundDocuments(gson, currentRound)
+        }
+        roundDocuments.compareAndSet(cached, documents)
+        return documents
     }
 
-    fun getCurrentRoundInfo(gson: Gson): JsonObject {
+    private fun buildRoundDocuments(gson: Gson, currentRound: Round): RoundDocuments {
+        val miningInfo = currentRound.miningInfo
+        val currentRoundBytes = getCurrentRoundInfo(gson, currentRound).toString().toByteArray(StandardCharsets.UTF_8)
+        if (miningInfo == null) {
+            return RoundDocuments(currentRound, gson.toJson(JsonNull.INSTANCE).toByteArray(StandardCharsets.UTF_8), null, currentRoundBytes)
+        }
+        val generationSignature = burstCrypto.toHexString(miningInfo.generationSignature)
+        // TODO remove dependency on internal burstkit4j class
+        val miningInfoJson = gson.toJsonTree(MiningInfoResponse(generationSignature, miningInfo.baseTarget, miningInfo.height)).asJsonObject
+        miningInfoJson.addProperty("targetDeadline", propertyService.get(Props.maxDeadline))
+        return RoundDocuments(currentRound, miningInfoJson.toString().toByteArray(StandardCharsets.UTF_8), "\"" + miningInfo.height + "-" + generationSignature + "\"", currentRoundBytes)
+    }
+
+    private fun getCurrentRoundInfo(gson: Gson, currentRound: Round): JsonObject {
         val jsonObject = JsonObject()
-        jsonObject.addProperty("roundStart", roundStartTime.get().epochSecond)
-        if (bestSubmission.get() != null) {
+        jsonObject.addProperty("roundStart", currentRound.startTime.epochSecond)
+        val best = currentRound.bestSubmission
+        if (best != null) {
             val bestDeadlineJson = JsonObject()
-            bestDeadlineJson.addProperty("miner", bestSubmission.get()!!.miner.id)
-            bestDeadlineJson.addProperty("minerRS", bestSubmission.get()!!.miner.fullAddress)
-            bestDeadlineJson.addProperty("nonce", bestSubmission.get()!!.nonce)
-            bestDeadlineJson.addProperty("deadline", bestDeadline.get())
+            bestDeadlineJson.addProperty("miner", best.submission.miner.id)
+            bestDeadlineJson.addProperty("minerRS", best.submission.miner.fullAddress)
+            bestDeadlineJson.addProperty("nonce", best.submission.nonce)
+            bestDeadlineJson.addProperty("deadline", best.deadline)
             jsonObject.add("bestDeadline", bestDeadlineJson)
         } else {
             jsonObject.add("bestDeadline", JsonNull.INSTANCE)
         }
-        val miningInfo = miningInfo.get()
+        val miningInfo = currentRound.miningInfo
         if (miningInfo != null) {
             jsonObject.add("miningInfo", gson.toJsonTree(MiningInfoResponse(burstCrypto.toHexString(miningInfo.generationSignature), miningInfo.baseTarget, miningInfo.height)))
         }
@@ -299,6 +513,15 @@ class Pool(private val nodeService: BurstNodeService, private val storageService
     val account: BurstAddress
         get() = burstCrypto.getBurstAddressFromPassphrase(propertyService.get(Props.passphrase))
 
+    private class VerifiedSubmission(val submission: Submission, val deadline: BigInteger, val duplicate: Boolean)
+
+    override fun close() {
+        disposables.dispose()
+        nonceForwarder.close()
+        verificationExecutor.close()
+        deadlineQueue.close()
+    }
+
     companion object {
         private val logger = LoggerFactory.getLogger(Pool::class.java)
     }
@@ -306,6 +529,6 @@ class Pool(private val nodeService: BurstNodeService, private val storageService
     init {
         disposables.add(refreshMiningInfoThread())
         disposables.add(processBlocksThread())
-        resetRound(null)
+        refreshRewardRecipients()
     }
 }
@@ -0,0 +1,131 @@
+package burst.pool.pool
+
+import burst.kit.util.BurstKitUtils
+import burst.pool.metrics.Metrics
+import burst.pool.net.NioConnection
+import burst.pool.net.NioServer
+import burst.pool.storage.config.PropertyService
+import burst.pool.storage.config.Props
+import com.google.gson.JsonElement
+import com.google.gson.JsonObject
+import com.google.gson.JsonParseException
+import org.slf4j.LoggerFactory
+import java.io.ByteArrayOutputStream
+import java.math.BigInteger
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CompletionException
+
+/**
+ * Persistent connections for miners, as an alternative to polling. Messages are JSON objects, one per line.
+ *
+ * The pool sends `{"miningInfo": {...}}` on connect and again as soon as the round changes.
+ * Miners submit nonces with `{"id": ..., "accountId": ..., "nonce": ..., "blockheight": ...}` (blockheight and userAgent are optional),
+ * which are answered with `{"id": ..., "result": "success", "deadline": ...}` or `{"id": ..., "result": "<error>"}`.
+ * Answers may arrive in a different order to the submissions, the id is echoed back to match them up.
+ */
+class PushServer(private val pool: Pool, propertyService: PropertyService) : NioServer(propertyService.get(Props.pushServerPort), "push-server", MAX_LINE_LENGTH) {
+    private val gson = BurstKitUtils.buildGson().create()
+    @Volatile
+    private var miningInfoMessage: Pair<ByteArray, ByteArray>? = null
+
+    override fun onConnected(connection: NioConnection) {
+        connection.send(getMiningInfoMessage())
+    }
+
+    override fun onRead(connection: NioConnection, buffer: ByteBuffer) {
+        while (true) {
+            var lineEnd = -1
+            for (i in buffer.position() until buffer.limit()) {
+                if (buffer.get(i) == NEWLINE) {
+                    lineEnd = i
+                    break
+                }
+            }
+            if (lineEnd < 0) return
+            val line = String(buffer.array(), buffer.arrayOffset() + buffer.position(), lineEnd - buffer.position(), StandardCharsets.UTF_8)
+            buffer.position(lineEnd + 1)
+            if (line.isNotBlank()) {
+                handleLine(connection, line)
+            }
+        }
+    }
+
+    private fun handleLine(connection: NioConnection, line: String) {
+        val request = try {
+            gson.fromJson(line, JsonObject::class.java)
+        } catch (e: JsonParseException) {
+            null
+        }
+        if (request == null) {
+            connection.send(toMessage(null, "Malformed Request", null))
+            return
+        }
+        val id = request.get("id")
+        val submission = try {
+            pool.parseSubmission(JsonUtils.getString(request, "accountId"), JsonUtils.getString(request, "nonce"), JsonUtils.getString(request, "blockheight"))
+        } catch (e: SubmissionException) {
+            connection.send(toMessage(id, e.message, null))
+            return
+        } catch (e: Exception) {
+            connection.send(toMessage(id, "Malformed Request", null))
+            return
+        }
+        pool.checkNewSubmissionAsync(submission, JsonUtils.getString(request, "userAgent") ?: USER_AGENT).whenComplete { deadline, throwable ->
+            if (throwable == null) {
+                connection.send(toMessage(id, "success", deadline))
+            } else {
+                val cause = if (throwable is CompletionException && throwable.cause != null) throwable.cause!! else throwable
+                if (cause !is SubmissionException) logger.warn("Error checking submission", cause)
+                connection.send(toMessage(id, cause.message, null))
+            }
+        }
+    }
+
+    private fun toMessage(id: JsonElement?, result: String?, deadline: BigInteger?): ByteArray {
+        val message = JsonObject()
+        if (id != null) message.add("id", id)
+        message.addProperty("result", result)
+        if (deadline != null) message.addProperty("deadline", deadline)
+        return (message.toString() + "\n").toByteArray(StandardCharsets.UTF_8)
+    }
+
+    /**
+     * The mining info document from [Pool.getRoundDocuments] wrapped in a push message, built once per round
+     */
+    private fun getMiningInfoMessage(): ByteArray {
+        val miningInfo = pool.getRoundDocuments(gson).miningInfo
+        val cached = miningInfoMessage
+        if (cached != null && cached.first === miningInfo) {
+            return cached.second
+        }
+        val message = ByteArrayOutputStream(miningInfo.size + MINING_INFO_PREFIX.size + 2)
+        message.write(MINING_INFO_PREFIX)
+        message.write(miningInfo)
+        message.write("}\n".toByteArray(StandardCharsets.UTF_8))
+        val bytes = message.toByteArray()
+        miningInfoMessage = Pair(miningInfo, bytes)
+        return bytes
+    }
+
+    private fun watchRounds() {
+        pool.awaitNewBlock(null, null).thenRun {
+            val message = getMiningInfoMessage()
+            forEachConnection { it.send(message) }
+            watchRounds()
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(PushServer::class.java)
+        private const val MAX_LINE_LENGTH = 4096
+        private const val NEWLINE = '\n'.toByte()
+        private const val USER_AGENT = "push"
+        private val MINING_INFO_PREFIX = "{\"miningInfo\":".toByteArray(StandardCharsets.UTF_8)
+    }
+
+    init {
+        Metrics.gauge("pushConnections") { connectionCount }
+        watchRounds()
+    }
+}
@@ -0,0 +1,41 @@
+package burst.pool.pool
+
+import burst.kit.entity.response.MiningInfo
+import burst.pool.node.Node
+import java.time.Instant
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Immutable snapshot of the current round. Replaced atomically when the round changes or a better submission arrives.
+ * @param epoch Incremented every time the round changes, so that submissions can detect that they are stale.
+ * @param source The node that reported [miningInfo] first.
+ * @param duplicateFilter Deadlines of the submissions accepted this round, shared by every snapshot of the round.
+ * @param minerBestDeadlines Each miner's best deadline this round by account ID, shared by every snapshot of the round.
+ * @param nextRound Completed with the next round once this round is replaced, shared by every snapshot of the round.
+ */
+class Round(val epoch: Long, val miningInfo: MiningInfo?, val source: Node?, val startTime: Instant, val bestSubmission: BestSubmission?, val duplicateFilter: DuplicateSubmissionFilter, private val minerBestDeadlines: ConcurrentHashMap<Long, Long> = ConcurrentHashMap(), val nextRound: CompletableFuture<Round> = CompletableFuture()) {
+    fun withBestSubmission(bestSubmission: BestSubmission): Round {
+        return Round(epoch, miningInfo, source, startTime, bestSubmission, duplicateFilter, minerBestDeadlines, nextRound)
+    }
+
+    fun next(miningInfo: MiningInfo, source: Node): Round {
+        return Round(epoch + 1, miningInfo, source, Instant.now(), null, DuplicateSubmissionFilter(duplicateFilter.maxEntries))
+    }
+
+    /**
+     * @return Whether [deadline] is better than the best deadline recorded for the miner this round
+     */
+    fun isMinerBestDeadline(accountId: Long, deadline: Long): Boolean {
+        val best = minerBestDeadlines[accountId] ?: return true
+        return deadline < best
+    }
+
+    /**
+     * Records [deadline] as the miner's best this round if it is better than their current best.
+     * Must only be called once the deadline has been queued for storage.
+     */
+    fun updateMinerBestDeadline(accountId: Long, deadline: Long) {
+        minerBestDeadlines.merge(accountId, deadline) { existing, newer -> Math.min(existing, newer) }
+    }
+}
@@ -0,0 +1,7 @@
+package burst.pool.pool
+
+/**
+ * The getMiningInfo and getCurrentRound responses for one [Round] snapshot, serialized once and served to every poller.
+ * @param miningInfoETag Derived from the height and generation signature, null if there is no mining info yet
+ */
+class RoundDocuments(val round: Round, val miningInfo: ByteArray, val miningInfoETag: String?, val currentRound: ByteArray)
@@ -3,22 +3,25 @@ package burst.pool.pool
 import burst.kit.crypto.BurstCrypto
 import burst.kit.entity.BurstAddress
 import burst.kit.entity.BurstValue
-import burst.kit.entity.response.http.MiningInfoResponse
 import burst.kit.util.BurstKitUtils
 import burst.pool.Constants
 import burst.pool.entity.WonBlock
+import burst.pool.metrics.Metrics
 import burst.pool.miners.Miner
 import burst.pool.miners.MinerTracker
+import burst.pool.node.NodeSelector
 import burst.pool.storage.config.PropertyService
 import burst.pool.storage.config.Props
 import burst.pool.storage.persistent.StorageService
 import com.google.gson.*
 import fi.iki.elonen.NanoHTTPD
+import io.reactivex.schedulers.Schedulers
 import org.ehcache.Cache
 import org.ehcache.config.builders.CacheConfigurationBuilder
 import org.ehcache.config.builders.CacheManagerBuilder
 import org.ehcache.config.builders.ResourcePoolsBuilder
 import org.slf4j.LoggerFactory
+import java.io.ByteArrayInputStream
 import java.io.FileInputStream
 import java.io.IOException
 import java.io.InputStream
@@ -29,10 +32,12 @@ import java.net.URLConnection
 import java.nio.charset.StandardCharsets
 import java.time.Instant
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicReference
 import java.util.function.Consumer
 
-class Server(private val storageService: StorageService, private val propertyService: PropertyService, private val pool: Pool, private val minerTracker: MinerTracker) : NanoHTTPD(propertyService.get(Props.serverPort)) {
+class Server(private val storageService: StorageService, private val propertyService: PropertyService, private val pool: Pool, private val minerTracker: MinerTracker, private val nodeSelector: NodeSelector) : NanoHTTPD(propertyService.get(Props.serverPort)) {
     private val gson = BurstKitUtils.buildGson().create()
     private val burstCrypto = BurstCrypto.getInstance()
     private val fileCache: Cache<String, String> = CacheManagerBuilder.newCacheManagerBuilder()
@@ -46,11 +51,27 @@ class Server(private val storageService: StorageService, private val propertySer
         }
 
     override fun serve(session: IHTTPSession): Response {
+        // NanoHTTPD has to be given the response on the request thread, so it never long polls
+        return serveNow(session)
+    }
+
+    /**
+     * Serves the request, without holding a thread while a long poll waits for a new block. Used by the NIO engine.
+     */
+    fun serveAsync(session: IHTTPSession): CompletableFuture<Response> {
+        return longPollMiningInfo(session) ?: CompletableFuture.completedFuture(serveNow(session))
+    }
+
+    private fun serveNow(session: IHTTPSession): Response {
         return try {
             val params = queryToMap(session.queryParameterString)
             session.parseBody(HashMap())
             params.putAll(session.parms)
-            if (session.uri.startsWith("/burst")) {
+            if (session.uri.startsWith("/burst") && params["requestType"] == "getMiningInfo") {
+                serveMiningInfo(session)
+            } else if (session.uri.startsWith("/api/getCurrentRound")) {
+                newJsonResponse(pool.getRoundDocuments(gson).currentRound)
+            } else if (session.uri.startsWith("/burst")) {
                 newFixedLengthResponse(Response.Status.OK, "application/json", handleBurstApiCall(session, params))
             } else if (session.uri.startsWith("/api")) {
                 newFixedLengthResponse(Response.Status.OK, "application/json", handleApiCall(session, params))
@@ -69,43 +90,120 @@ class Server(private val storageService: StorageService, private val propertySer
     private fun handleBurstApiCall(session: IHTTPSession, params: Map<String, String>): String {
         return if (session.method == Method.POST && params["requestType"] == "submitNonce") {
             try {
-                val nonce = try {
-                    BigInteger(params["nonce"] ?: throw SubmissionException("Missing Nonce"))
-                } catch (e: NumberFormatException) {
-                    throw SubmissionException("Malformed Nonce")
-                }
-                val accountId = BurstAddress.fromEither(params["accountId"] ?: throw SubmissionException("Missing Account ID")) ?: throw SubmissionException("Malformed Account ID")
-                val submission = Submission(accountId, nonce)
-
-                val heightString = params["blockheight"]
-                if (!heightString.isNullOrBlank()) {
-                    val blockHeight = try {
-                        java.lang.Long.parseUnsignedLong(heightString)
-                    } catch (e: NumberFormatException) {
-                        throw SubmissionException("Malformed Block Height")
-                    }
-                    val miningInfo = pool.getMiningInfo() ?: throw SubmissionException("Cannot submit, new round starting")
-                    if (blockHeight != miningInfo.height) {
-                        throw SubmissionException("Given block height does not match current round height")
-                    }
-                }
-                var userAgent = session.headers["user-agent"]
-                if (userAgent == null) userAgent = ""
-                gson.toJson(NonceSubmissionResponse("success", pool.checkNewSubmission(submission, userAgent)))
+                val submission = pool.parseSubmission(params["accountId"], params["nonce"], params["blockheight"])
+                gson.toJson(NonceSubmissionResponse("success", pool.checkNewSubmission(submission, getUserAgent(session))))
+            } catch (e: SubmissionException) {
+                gson.toJson(NonceSubmissionResponse(e.message, null))
+            }
+        } else if (session.method == Method.POST && params["requestType"] == "submitNonces") {
+            try {
+                handleBatchSubmission(session, params)
             } catch (e: SubmissionException) {
-                gson.toJson(NonceSubmissionResponse(e.message!!, null))
+                gson.toJson(NonceSubmissionResponse(e.message, null))
             }
-        } else if (params["requestType"] == "getMiningInfo") {
-            val miningInfo = pool.getMiningInfo() ?: return gson.toJson(JsonNull.INSTANCE)
-            // TODO remove dependency on internal burstkit4j class
-            val miningInfoJson = gson.toJsonTree(MiningInfoResponse(burstCrypto.toHexString(miningInfo.generationSignature), miningInfo.baseTarget, miningInfo.height)).asJsonObject
-            miningInfoJson.addProperty("targetDeadline", propertyService.get(Props.maxDeadline))
-            miningInfoJson.toString()
         } else {
             "404 not found"
         }
     }
 
+    /**
+     * If this is a getMiningInfo request that passes the height or generationSignature the miner already has,
+     * wait until the pool moves on from that block or the long poll times out before answering.
+     * @return The pending response, or null if the request should be served normally
+     */
+    private fun longPollMiningInfo(session: IHTTPSession): CompletableFuture<Response>? {
+        val timeoutSeconds = propertyService.get(Props.longPollTimeoutSeconds)
+        if (timeoutSeconds == 0 || !session.uri.startsWith("/burst")) return null
+        val params = queryToMap(session.queryParameterString)
+        if (params["requestType"] != "getMiningInfo") return null
+        val heightString = params["height"]
+        val generationSignatureString = params["generationSignature"]
+        if (heightString.isNullOrBlank() && generationSignatureString.isNullOrBlank()) return null
+        val height = try {
+            if (heightString.isNullOrBlank()) null else java.lang.Long.parseUnsignedLong(heightString)
+        } catch (e: NumberFormatException) {
+            return null
+        }
+        val generationSignature = try {
+            if (generationSignatureString.isNullOrBlank()) null else burstCrypto.parseHexString(generationSignatureString)
+        } catch (e: Exception) {
+            return null
+        }
+        val newBlock = pool.awaitNewBlock(height, generationSignature)
+        if (newBlock.isDone) return null
+        val response = CompletableFuture<Response>()
+        val timeout = Schedulers.computation().scheduleDirect({ completeWithMiningInfo(response, session) }, timeoutSeconds.toLong(), TimeUnit.SECONDS)
+        newBlock.thenRun {
+            // The dependent can't be removed from the shared future, so polls that already timed out just skip building the response
+            if (response.isDone) return@thenRun
+            timeout.dispose()
+            completeWithMiningInfo(response, session)
+        }
+        return response
+    }
+
+    private fun completeWithMiningInfo(response: CompletableFuture<Response>, session: IHTTPSession) {
+        try {
+            response.complete(serveMiningInfo(session))
+        } catch (e: Exception) {
+            response.completeExceptionally(e)
+        }
+    }
+
+    private fun serveMiningInfo(session: IHTTPSession): Response {
+        val documents = pool.getRoundDocuments(gson)
+        val eTag = documents.miningInfoETag ?: return newJsonResponse(documents.miningInfo)
+        val response = if (eTag == session.headers["if-none-match"]) {
+            newFixedLengthResponse(Response.Status.NOT_MODIFIED, "application/json", "")
+        } else {
+            newJsonResponse(documents.miningInfo)
+        }
+        response.addHeader("ETag", eTag)
+        return response
+    }
+
+    private fun newJsonResponse(bytes: ByteArray): Response {
+        return newFixedLengthResponse(Response.Status.OK, "application/json", ByteArrayInputStream(bytes), bytes.size.toLong())
+    }
+
+    /**
+     * Handles a batch of submissions, passed in the "nonces" parameter as a JSON array of objects with the same fields as submitNonce.
+     * @return A JSON array with the result of each submission, in the same order as the request
+     */
+    @Throws(SubmissionException::class)
+    private fun handleBatchSubmission(session: IHTTPSession, params: Map<String, String>): String {
+        val entries = try {
+            gson.fromJson(params["nonces"] ?: throw SubmissionException("Missing Nonces"), JsonArray::class.java) ?: throw SubmissionException("Missing Nonces")
+        } catch (e: JsonParseException) {
+            throw SubmissionException("Malformed Nonces")
+        }
+        val maxBatchSize = propertyService.get(Props.maxBatchSubmissions)
+        if (entries.size() > maxBatchSize) {
+            throw SubmissionException("Too many nonces (Submitted ${entries.size()}, maximum is $maxBatchSize)")
+        }
+        val responses = arrayOfNulls<NonceSubmissionResponse>(entries.size())
+        val submissions = ArrayList<Submission>(entries.size())
+        val submissionIndices = ArrayList<Int>(entries.size())
+        entries.forEachIndexed { i, entry ->
+            try {
+                if (!entry.isJsonObject) throw SubmissionException("Malformed Nonce")
+                val entryObject = entry.asJsonObject
+                submissions.add(pool.parseSubmission(JsonUtils.getString(entryObject, "accountId"), JsonUtils.getString(entryObject, "nonce"), JsonUtils.getString(entryObject, "blockheight")))
+                submissionIndices.add(i)
+            } catch (e: SubmissionException) {
+                responses[i] = NonceSubmissionResponse(e.message, null)
+            }
+        }
+        if (submissions.isNotEmpty()) {
+            pool.checkNewSubmissions(submissions, getUserAgent(session)).forEachIndexed { i, response -> responses[submissionIndices[i]] = response }
+        }
+        return gson.toJson(responses)
+    }
+
+    private fun getUserAgent(session: IHTTPSession): String {
+        return session.headers["user-agent"] ?: ""
+    }
+
     private fun handleApiCall(session: IHTTPSession, params: Map<String, String>): String {
         return when {
             session.uri.startsWith("/api/getMiners") -> {
@@ -147,8 +245,11 @@ class Server(private val storageService: StorageService, private val propertySer
                 response.addProperty(Props.transactionFee.name, propertyService.get(Props.transactionFee))
                 response.toString()
             }
-            session.uri.startsWith("/api/getCurrentRound") -> {
-                pool.getCurrentRoundInfo(gson).toString()
+            session.uri.startsWith("/api/getMetrics") -> {
+                Metrics.toJson().toString()
+            }
+            session.uri.startsWith("/api/getNodes") -> {
+                nodeSelector.toJson().toString()
             }
             session.uri.startsWith("/api/setMinerMinimumPayout") -> { // TODO the flow of this is horrible
                 if (session.method != Method.POST) {
@@ -344,6 +445,7 @@ class Server(private val storageService: StorageService, private val propertySer
 
     companion object {
         private val logger = LoggerFactory.getLogger(Server::class.java)
+
         private val allowedFileExtensions = arrayOf(".html", ".css", ".js", ".png", ".ico")
         private fun queryToMap(query: String?): MutableMap<String, String> {
             val result: MutableMap<String, String> = HashMap()
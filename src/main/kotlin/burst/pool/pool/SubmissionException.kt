@@ -1,3 +1,16 @@
 package burst.pool.pool
 
-class SubmissionException(override val message: String) : Exception(message)
+/**
+ * @param code Identifies the reason for the binary protocol, which has no room for the message
+ */
+class SubmissionException(override val message: String, val code: Long = ERROR_UNKNOWN) : Exception(message) {
+    companion object {
+        const val ERROR_UNKNOWN = -1L
+        const val ERROR_BUSY = -2L
+        const val ERROR_ROUND_CHANGED = -3L
+        const val ERROR_WRONG_HEIGHT = -4L
+        const val ERROR_REWARD_RECIPIENT = -5L
+        const val ERROR_DEADLINE_TOO_HIGH = -6L
+        const val ERROR_MALFORMED = -7L
+    }
+}
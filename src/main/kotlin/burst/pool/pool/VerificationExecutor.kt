@@ -0,0 +1,86 @@
+package burst.pool.pool
+
+import burst.pool.metrics.Metrics
+import burst.pool.storage.config.PropertyService
+import burst.pool.storage.config.Props
+import org.slf4j.LoggerFactory
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Fixed size thread pool with a bounded queue for verifying deadlines. When it is saturated new tasks are
+ * rejected with a "busy" [SubmissionException] rather than piling up on request threads.
+ */
+class VerificationExecutor(propertyService: PropertyService) : AutoCloseable {
+    private val queue = ArrayBlockingQueue<Runnable>(propertyService.get(Props.verificationQueueCapacity))
+    private val executor: ThreadPoolExecutor
+    private val queueWait = Metrics.latency("verificationQueueWait")
+    private val rejectedCount = AtomicLong()
+
+    /**
+     * @throws SubmissionException if the executor is saturated
+     */
+    @Throws(SubmissionException::class)
+    fun <T> submit(task: () -> T): Future<T> {
+        val queuedTime = System.nanoTime()
+        try {
+            return executor.submit(Callable {
+                queueWait.recordSince(queuedTime)
+                task()
+            })
+        } catch (e: RejectedExecutionException) {
+            if (rejectedCount.incrementAndGet() % 1000 == 1L) {
+                logger.warn("Verification queue is full, rejecting submissions ({} rejected so far)", rejectedCount.get())
+            }
+            throw SubmissionException(BUSY_MESSAGE, SubmissionException.ERROR_BUSY)
+        }
+    }
+
+    /**
+     * Runs [task] on the executor and waits for its result.
+     * @throws SubmissionException if the executor is saturated or if [task] throws one
+     */
+    @Throws(SubmissionException::class)
+    fun <T> execute(task: () -> T): T {
+        return getResult(submit(task))
+    }
+
+    @Throws(SubmissionException::class)
+    fun <T> getResult(future: Future<T>): T {
+        try {
+            return future.get()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw SubmissionException("Server Interrupted")
+        } catch (e: ExecutionException) {
+            when (val cause = e.cause) {
+                is SubmissionException -> throw cause
+                is RuntimeException -> throw cause
+                else -> throw IllegalStateException(cause)
+            }
+        }
+    }
+
+    override fun close() {
+        executor.shutdownNow()
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(VerificationExecutor::class.java)
+        const val BUSY_MESSAGE = "Pool is busy, please try again"
+    }
+
+    init {
+        var threadCount = propertyService.get(Props.verificationThreads)
+        if (threadCount <= 0) threadCount = Runtime.getRuntime().availableProcessors()
+        val threadNumber = AtomicInteger()
+        executor = ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, queue, ThreadFactory { runnable ->
+            val thread = Thread(runnable, "deadline-verifier-" + threadNumber.incrementAndGet())
+            thread.isDaemon = true
+            thread
+        }, ThreadPoolExecutor.AbortPolicy())
+        Metrics.gauge("verificationQueueDepth") { queue.size }
+        Metrics.gauge("verificationRejected") { rejectedCount.get() }
+    }
+}
@@ -5,12 +5,19 @@ import kotlin.math.pow
 
 object Props {
     val serverPort = Prop("serverPort", 80) // Must be > 0, < 2^16
+    val pushServerPort = Prop("pushServerPort", 0) // 0 = disabled
+    val binaryServerPort = Prop("binaryServerPort", 0) // 0 = disabled
+    val httpEngine = Prop("httpEngine", "nanohttpd") // Must be nanohttpd or nio
+    val httpEventLoopThreads = Prop("httpEventLoopThreads", 2) // Must be > 0
+    val httpWorkerThreads = Prop("httpWorkerThreads", 64) // Must be > 0
+    val httpVirtualThreads = Prop("httpVirtualThreads", false)
     val nodeAddresses = Prop("nodeAddresses", emptyList<String>()) // Must be non-empty
     val poolName = Prop("poolName", "")
     val passphrase = Prop("passphrase", "") // Must be non-empty
     val dbUrl = Prop("dbUrl", "")
     val dbUsername = Prop("dbUsername", "")
     val dbPassword = Prop("dbPassword", "")
+    val storageMode = Prop("storageMode", "database") // Must be database or memory
     val nAvg = Prop("nAvg", 360) // Must be ?
     val nMin = Prop("nMin", 1) // Must be ?
     val tMin = Prop("tMin", 20) // Must be ?
@@ -25,6 +32,17 @@ object Props {
     val transactionFee = Prop("transactionFee", 1f) // Must be > 0.00735
     val payoutRetryCount = Prop("payoutRetryCount", 3)
     val submitNonceRetryCount = Prop("submitNonceRetryCount", 3)
+    val nonceForwardDelayMillis = Prop("nonceForwardDelayMillis", 200) // Must be >= 0
+    val nonceHedgePercentile = Prop("nonceHedgePercentile", 95) // Must be 1-100
+    val deadlineQueueCapacity = Prop("deadlineQueueCapacity", 10000) // Must be > 0
+    val deadlineQueueBatchSize = Prop("deadlineQueueBatchSize", 500) // Must be > 0
+    val duplicateFilterCapacity = Prop("duplicateFilterCapacity", 100000) // Must be > 0
+    val maxBatchSubmissions = Prop("maxBatchSubmissions", 1000) // Must be > 0
+    val verificationThreads = Prop("verificationThreads", 0) // 0 = number of cores
+    val verificationQueueCapacity = Prop("verificationQueueCapacity", 10000) // Must be > 0
+    val minerNameRefreshMinutes = Prop("minerNameRefreshMinutes", 60) // Must be >= 0
+    val minerNameRefreshBatchSize = Prop("minerNameRefreshBatchSize", 100) // Must be > 0
+    val longPollTimeoutSeconds = Prop("longPollTimeoutSeconds", 0) // Must be >= 0
     val siteTitle = Prop("site.title", "Burst Pool")
     val siteIconIco = Prop("site.icon.ico", "icon.ico")
     val siteIconPng = Prop("site.icon.png", "icon.png")
@@ -63,5 +81,39 @@ object Props {
         require(!(minPayoutsPerTransaction < 2 || minPayoutsPerTransaction > 64)) { "Illegal minPayoutsPerTransaction: $minPayoutsPerTransaction (Must be 2-64)" }
         val transactionFee = propertyService.get(transactionFee)
         require(transactionFee >= 0.00735f) { "Illegal minPayoutsPerTransaction: $minPayoutsPerTransaction (Must be > 0.00735)" }
+        val nonceForwardDelayMillis = propertyService.get(nonceForwardDelayMillis)
+        require(nonceForwardDelayMillis >= 0) { "Illegal nonceForwardDelayMillis: $nonceForwardDelayMillis (Must be >= 0)" }
+        val nonceHedgePercentile = propertyService.get(nonceHedgePercentile)
+        require(nonceHedgePercentile in 1..100) { "Illegal nonceHedgePercentile: $nonceHedgePercentile (Must be 1-100)" }
+        val deadlineQueueCapacity = propertyService.get(deadlineQueueCapacity)
+        require(deadlineQueueCapacity > 0) { "Illegal deadlineQueueCapacity: $deadlineQueueCapacity (Must be > 0)" }
+        val deadlineQueueBatchSize = propertyService.get(deadlineQueueBatchSize)
+        require(deadlineQueueBatchSize > 0) { "Illegal deadlineQueueBatchSize: $deadlineQueueBatchSize (Must be > 0)" }
+        val duplicateFilterCapacity = propertyService.get(duplicateFilterCapacity)
+        require(duplicateFilterCapacity > 0) { "Illegal duplicateFilterCapacity: $duplicateFilterCapacity (Must be > 0)" }
+        val maxBatchSubmissions = propertyService.get(maxBatchSubmissions)
+        require(maxBatchSubmissions > 0) { "Illegal maxBatchSubmissions: $maxBatchSubmissions (Must be > 0)" }
+        val verificationThreads = propertyService.get(verificationThreads)
+        require(verificationThreads >= 0) { "Illegal verificationThreads: $verificationThreads (Must be >= 0)" }
+        val verificationQueueCapacity = propertyService.get(verificationQueueCapacity)
+        require(verificationQueueCapacity > 0) { "Illegal verificationQueueCapacity: $verificationQueueCapacity (Must be > 0)" }
+        val minerNameRefreshMinutes = propertyService.get(minerNameRefreshMinutes)
+        require(minerNameRefreshMinutes >= 0) { "Illegal minerNameRefreshMinutes: $minerNameRefreshMinutes (Must be >= 0)" }
+        val minerNameRefreshBatchSize = propertyService.get(minerNameRefreshBatchSize)
+        require(minerNameRefreshBatchSize > 0) { "Illegal minerNameRefreshBatchSize: $minerNameRefreshBatchSize (Must be > 0)" }
+        val pushServerPort = propertyService.get(pushServerPort)
+        require(pushServerPort in 0..65535) { "Illegal pushServerPort: $pushServerPort (Must be 0-65535)" }
+        val binaryServerPort = propertyService.get(binaryServerPort)
+        require(binaryServerPort in 0..65535) { "Illegal binaryServerPort: $binaryServerPort (Must be 0-65535)" }
+        val httpEngine = propertyService.get(httpEngine)
+        require(httpEngine == "nanohttpd" || httpEngine == "nio") { "Illegal httpEngine: $httpEngine (Must be nanohttpd or nio)" }
+        val httpEventLoopThreads = propertyService.get(httpEventLoopThreads)
+        require(httpEventLoopThreads > 0) { "Illegal httpEventLoopThreads: $httpEventLoopThreads (Must be > 0)" }
+        val httpWorkerThreads = propertyService.get(httpWorkerThreads)
+        require(httpWorkerThreads > 0) { "Illegal httpWorkerThreads: $httpWorkerThreads (Must be > 0)" }
+        val storageMode = propertyService.get(storageMode)
+        require(storageMode == "database" || storageMode == "memory") { "Illegal storageMode: $storageMode (Must be database or memory)" }
+        val longPollTimeoutSeconds = propertyService.get(longPollTimeoutSeconds)
+        require(longPollTimeoutSeconds >= 0) { "Illegal longPollTimeoutSeconds: $longPollTimeoutSeconds (Must be >= 0)" }
     }
 }
@@ -34,6 +34,8 @@ import java.math.BigInteger
 import java.sql.Connection
 import java.sql.SQLException
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.stream.Collectors
 
 class DbStorageService(propertyService: PropertyService, minerMaths: MinerMaths, burstNodeService: BurstNodeService) : StorageService {
@@ -41,12 +43,16 @@ class DbStorageService(propertyService: PropertyService, minerMaths: MinerMaths,
     private val minerMaths: MinerMaths
     private val burstNodeService: BurstNodeService
     private val localConnection = ThreadLocal<Connection?>()
+    // Exact counts, rebuilt from the database on startup and adjusted by every insert and delete
+    private val minerCounter = AtomicInteger()
+    private val deadlineCounters = ConcurrentHashMap<Long, Int>()
+    private val transactionCounterChanges = ThreadLocal<CounterChanges?>()
     private val nMin: Int
     private val settings: Settings
     private val connectionPool: HikariDataSource
     private val sqlDialect: SQLDialect
     private val cacheManager: CacheManager
-    private val cacheLocks: MutableMap<Table<*>, Any>
+    private val cacheLocks: MutableMap<Table<*>, CacheLock>
     private val dslContext: DSLContext
         get() {
             val connection = localConnection.get()
@@ -65,8 +71,13 @@ class DbStorageService(propertyService: PropertyService, minerMaths: MinerMaths,
         dslContext.use { context -> function(context) }
     }
 
+    /**
+     * Changes the cache of [table]
+     */
     private inline fun <reified T> doOnCache(table: Table<*>, operation: (Cache<String, T>) -> Unit) {
-        synchronized(cacheLocks[table]!!) {
+        val lock = cacheLocks[table]!!
+        synchronized(lock) {
+            lock.version++
             return operation(cacheManager.getCache(table.name, String::class.java, T::class.java))
         }
     }
@@ -84,19 +95,44 @@ class DbStorageService(propertyService: PropertyService, minerMaths: MinerMaths,
     }
 
     private inline fun <reified T> getFromCacheOr(table: Table<*>, key: String, lookup: () -> T): T? {
-        doOnCache<T>(table) { cache ->
+        val lock = cacheLocks[table]!!
+        val version = synchronized(lock) {
+            val cache = cacheManager.getCache(table.name, String::class.java, T::class.java)
             if (cache.containsKey(key)) return cache.get(key)
-            val newValue = lookup() ?: return null
-            cache.put(key, newValue)
-            return newValue
+            lock.version
         }
-        return null // TODO this is needed because we're not allowed contracts on class members
+        // The lookup runs outside the lock so that a query doesn't block the other threads using this cache, or pin a virtual thread's carrier
+        val newValue = lookup() ?: return null
+        synchronized(lock) {
+            // If the cache changed meanwhile, the value looked up may already be stale
+            if (lock.version == version) cacheManager.getCache(table.name, String::class.java, T::class.java).put(key, newValue)
+        }
+        return newValue
     }
 
     private fun minerFromRecord(record: MinersRecord): Miner {
         return Miner(minerMaths, propertyService, BurstAddress.fromId(BurstID.fromLong(record.accountId)), DbMinerStore(record.accountId))
     }
 
+    /**
+     * Fills the cache with a miner's fields so that reading them does not query each one
+     */
+    private fun cacheMinerRecord(record: MinersRecord) {
+        val accountIdStr = java.lang.Long.toUnsignedString(record.accountId)
+        val pendingBalance = BurstValue.fromPlanck(record.pendingBalance ?: 0L)
+        val estimatedCapacity: Double = record.estimatedCapacity ?: 0.0
+        val share: Double = record.share ?: 0.0
+        val minimumPayout = BurstValue.fromPlanck(record.minimumPayout)
+        storeInCache(Miners.MINERS, accountIdStr + "pending", pendingBalance)
+        storeInCache(Miners.MINERS, accountIdStr + "estimated", estimatedCapacity)
+        storeInCache(Miners.MINERS, accountIdStr + "share", share)
+        storeInCache(Miners.MINERS, accountIdStr + "minpayout", minimumPayout)
+        val name: String? = record.name
+        if (name != null) storeInCache(Miners.MINERS, accountIdStr + "name", name)
+        val userAgent: String? = record.userAgent
+        if (userAgent != null) storeInCache(Miners.MINERS, accountIdStr + "userAgent", userAgent)
+    }
+
     private fun resetCache() {
         synchronized(cacheManager) {
             cacheManager.close()
@@ -110,6 +146,7 @@ class DbStorageService(propertyService: PropertyService, minerMaths: MinerMaths,
         val connection = connectionPool.connection
         connection.autoCommit = false
         localConnection.set(connection)
+        transactionCounterChanges.set(CounterChanges())
         return this
     }
 
@@ -117,6 +154,7 @@ class DbStorageService(propertyService: PropertyService, minerMaths: MinerMaths,
     override fun commitTransaction() {
         if (localConnection.get() != null) {
             localConnection.get()!!.commit()
+            transactionCounterChanges.set(CounterChanges())
         } else {
             throw IllegalStateException("Not in transaction")
         }
@@ -127,44 +165,93 @@ class DbStorageService(propertyService: PropertyService, minerMaths: MinerMaths,
         if (localConnection.get() != null) {
             localConnection.get()!!.rollback()
             resetCache()
+            revertCounterChanges()
         } else {
             throw IllegalStateException("Not in transaction")
         }
     }
 
-    private fun recalculateMinerCount() { // TODO increment would be faster...
+    private fun rebuildCounters() {
         useDslContextVoid { context ->
-            storeInCache(Miners.MINERS, "count", context.selectCount()
+            minerCounter.set(context.selectCount()
                     .from(Miners.MINERS)
                     .fetchOne(0, Int::class.javaPrimitiveType))
+            deadlineCounters.clear()
+            context.select(MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID, DSL.count())
+                    .from(MinerDeadlines.MINER_DEADLINES)
+                    .groupBy(MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID)
+                    .fetch()
+                    .forEach { record -> deadlineCounters[record.value1()] = record.value2() }
         }
     }
 
+    private fun adjustMinerCount(delta: Int) {
+        minerCounter.addAndGet(delta)
+        transactionCounterChanges.get()?.let { it.miners += delta }
+    }
+
+    private fun adjustDeadlineCount(accountId: Long, delta: Int) {
+        if (delta == 0) return
+        deadlineCounters.merge(accountId, delta) { count, change -> (count + change).takeIf { it != 0 } }
+        transactionCounterChanges.get()?.deadlines?.merge(accountId, delta) { count, change -> count + change }
+    }
+
+    /**
+     * Undoes the counter changes made by the current transaction, as it is being rolled back
+     */
+    private fun revertCounterChanges() {
+        val changes = transactionCounterChanges.get() ?: return
+        minerCounter.addAndGet(-changes.miners)
+        changes.deadlines.forEach { (accountId, delta) -> deadlineCounters.merge(accountId, -delta) { count, change -> (count + change).takeIf { it != 0 } } }
+        transactionCounterChanges.set(CounterChanges())
+    }
+
     override val minerCount: Int
-        get() = getFromCacheOr(Miners.MINERS, "count") {
-            useDslContext { context ->
-                context.selectCount()
-                        .from(Miners.MINERS)
-                        .fetchOne(0, Int::class.javaPrimitiveType)
-            }
-        }!!
+        get() = minerCounter.get()
 
     override val miners: List<Miner>
         get() = useDslContext { context ->
-            context.select(Miners.MINERS.ACCOUNT_ID)
-                    .from(Miners.MINERS)
-                    .fetch { id -> getMiner(id.get(Miners.MINERS.ACCOUNT_ID))!! }
+            val miners = ArrayList<Miner>()
+            context.selectFrom(Miners.MINERS)
+                    .fetchSize(STREAM_FETCH_SIZE)
+                    .fetchLazy()
+                    .use { cursor ->
+                        for (record in cursor) {
+                            cacheMinerRecord(record)
+                            miners.add(minerFromRecord(record))
+                        }
+                    }
+            miners
         }
 
     override val minersFiltered: List<Miner>
-        get() = useDslContext { context ->
-            context.select(Miners.MINERS.ACCOUNT_ID)
-                    .from(Miners.MINERS)
-                    .fetch { id -> getMiner(id.get(Miners.MINERS.ACCOUNT_ID)) }
-                    .filterNotNull()
-                    .filter { miner -> miner.nConf >= nMin }
-                    .toList()
+        get() = miners.filter { miner -> miner.nConf >= nMin }
+
+    override fun getMinersWithDeadlines(minDeadlineHeight: Long): List<Miner> {
+        return useDslContext { context ->
+            val deadlines = HashMap<Long, MutableMap<Long, Deadline>>()
+            context.selectFrom(MinerDeadlines.MINER_DEADLINES)
+                    .where(MinerDeadlines.MINER_DEADLINES.HEIGHT.ge(minDeadlineHeight))
+                    .fetchSize(STREAM_FETCH_SIZE)
+                    .fetchLazy()
+                    .use { cursor ->
+                        for (record in cursor) {
+                            deadlines.getOrPut(record.accountId) { TreeMap() }[record.height] = Deadline(BigInteger.valueOf(record.deadline), BigInteger.valueOf(record.baseTarget), record.height)
+                        }
+                    }
+            val miners = ArrayList<Miner>()
+            context.selectFrom(Miners.MINERS)
+                    .fetchSize(STREAM_FETCH_SIZE)
+                    .fetchLazy()
+                    .use { cursor ->
+                        for (record in cursor) {
+                            cacheMinerRecord(record)
+                            miners.add(Miner(minerMaths, propertyService, BurstAddress.fromId(BurstID.fromLong(record.accountId)), BlockMinerStore(record, deadlines[record.accountId] ?: TreeMap())))
+                        }
+                    }
+            miners
         }
+    }
 
     override fun getMiner(address: BurstAddress): Miner? {
         return getMiner(address!!.burstID.signedLongId)
@@ -199,12 +286,55 @@ class DbStorageService(propertyService: PropertyService, minerMaths: MinerMaths,
                 context.insertInto(Miners.MINERS, Miners.MINERS.ACCOUNT_ID, Miners.MINERS.PENDING_BALANCE, Miners.MINERS.ESTIMATED_CAPACITY, Miners.MINERS.SHARE, Miners.MINERS.MINIMUM_PAYOUT, Miners.MINERS.NAME, Miners.MINERS.USER_AGENT)
                         .values(address.burstID.signedLongId, 0L, 0.0, 0.0, BurstValue.fromBurst(propertyService.get(Props.defaultMinimumPayout).toDouble()).toPlanck().longValueExact(), "", "")
                         .execute()
-                recalculateMinerCount()
+                adjustMinerCount(1)
                 return@useDslContext getMiner(address)
             }
         }!!
     }
 
+    override fun storeMinerAccounting(accounting: Collection<MinerAccounting>) {
+        useDslContextVoid { context ->
+            for (chunk in accounting.chunked(BATCH_SIZE)) {
+                var batch = context.batch(context.update(Miners.MINERS)
+                        .set(Miners.MINERS.PENDING_BALANCE, 0L)
+                        .set(Miners.MINERS.ESTIMATED_CAPACITY, 0.0)
+                        .set(Miners.MINERS.SHARE, 0.0)
+                        .where(Miners.MINERS.ACCOUNT_ID.eq(0L)))
+                for (minerAccounting in chunk) {
+                    batch = batch.bind(minerAccounting.pendingBalance.toPlanck().longValueExact(), minerAccounting.estimatedCapacity, minerAccounting.share, minerAccounting.accountId)
+                }
+                batch.execute()
+            }
+        }
+        for (minerAccounting in accounting) {
+            val accountIdStr = java.lang.Long.toUnsignedString(minerAccounting.accountId)
+            storeInCache(Miners.MINERS, accountIdStr + "pending", minerAccounting.pendingBalance)
+            storeInCache(Miners.MINERS, accountIdStr + "estimated", minerAccounting.estimatedCapacity)
+            storeInCache(Miners.MINERS, accountIdStr + "share", minerAccounting.share)
+        }
+    }
+
+    override fun pruneDeadlines(minHeight: Long) {
+        val removed = useDslContext { context ->
+            val removedCounts = context.select(MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID, DSL.count())
+                    .from(MinerDeadlines.MINER_DEADLINES)
+                    .where(MinerDeadlines.MINER_DEADLINES.HEIGHT.lt(minHeight))
+                    .groupBy(MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID)
+                    .fetch()
+            if (removedCounts.isNotEmpty()) {
+                context.deleteFrom(MinerDeadlines.MINER_DEADLINES)
+                        .where(MinerDeadlines.MINER_DEADLINES.HEIGHT.lt(minHeight))
+                        .execute()
+                removedCounts.forEach { record -> adjustDeadlineCount(record.value1(), -record.value2()) }
+            }
+            removedCounts.isNotEmpty()
+        }
+        if (removed) {
+            // Cached deadlines of any miner may be stale now
+            doOnCache<Any>(MinerDeadlines.MINER_DEADLINES) { cache -> cache.clear() }
+        }
+    }
+
     override val poolFeeRecipient: PoolFeeRecipient
         get() = PoolFeeRecipient(propertyService, DbFeeRecipientStore())
 
@@ -310,28 +440,75 @@ class DbStorageService(propertyService: PropertyService, minerMaths: MinerMaths,
         }
     }
 
+    /**
+     * Loads the stored state of every miner, including all of their deadlines
+     */
+    fun loadMinerCheckpoints(): List<MinerCheckpoint> {
+        return useDslContext { context ->
+            val deadlines = HashMap<Long, MutableMap<Long, Deadline?>>()
+            context.selectFrom(MinerDeadlines.MINER_DEADLINES)
+                    .fetchSize(STREAM_FETCH_SIZE)
+                    .fetchLazy()
+                    .use { cursor ->
+                        cursor.forEach { record -> deadlines.getOrPut(record.accountId) { HashMap() }[record.height] = Deadline(BigInteger.valueOf(record.deadline), BigInteger.valueOf(record.baseTarget), record.height) }
+                    }
+            context.selectFrom(Miners.MINERS)
+                    .fetch { record -> MinerCheckpoint(record.accountId, BurstValue.fromPlanck(record.pendingBalance ?: 0L), record.estimatedCapacity ?: 0.0, record.share ?: 0.0,
+                            BurstValue.fromPlanck(record.minimumPayout ?: 0L), record.name, record.userAgent, deadlines[record.accountId] ?: emptyMap<Long, Deadline?>()) }
+        }
+    }
+
+    /**
+     * Writes the state of the given miners as one batch, in the current transaction if there is one
+     */
+    fun writeMinerCheckpoints(checkpoints: Collection<MinerCheckpoint>) {
+        if (checkpoints.isEmpty()) return
+        useDslContextVoid { context ->
+            val queries = ArrayList<Query>()
+            for (checkpoint in checkpoints) {
+                val pendingBalance = checkpoint.pendingBalance.toPlanck().longValueExact()
+                val minimumPayout = checkpoint.minimumPayout.toPlanck().longValueExact()
+                queries.add(context.insertInto(Miners.MINERS, Miners.MINERS.ACCOUNT_ID, Miners.MINERS.PENDING_BALANCE, Miners.MINERS.ESTIMATED_CAPACITY, Miners.MINERS.SHARE, Miners.MINERS.MINIMUM_PAYOUT, Miners.MINERS.NAME, Miners.MINERS.USER_AGENT)
+                        .values(checkpoint.accountId, pendingBalance, checkpoint.estimatedCapacity, checkpoint.share, minimumPayout, checkpoint.name, checkpoint.userAgent)
+                        .onDuplicateKeyUpdate()
+                        .set(Miners.MINERS.PENDING_BALANCE, pendingBalance)
+                        .set(Miners.MINERS.ESTIMATED_CAPACITY, checkpoint.estimatedCapacity)
+                        .set(Miners.MINERS.SHARE, checkpoint.share)
+                        .set(Miners.MINERS.MINIMUM_PAYOUT, minimumPayout)
+                        .set(Miners.MINERS.NAME, checkpoint.name)
+                        .set(Miners.MINERS.USER_AGENT, checkpoint.userAgent))
+                for ((height, deadline) in checkpoint.deadlines) {
+                    val query: Query = if (deadline == null) {
+                        context.deleteFrom(MinerDeadlines.MINER_DEADLINES)
+                                .where(MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID.eq(checkpoint.accountId), MinerDeadlines.MINER_DEADLINES.HEIGHT.eq(height))
+                    } else {
+                        context.insertInto(MinerDeadlines.MINER_DEADLINES, MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID, MinerDeadlines.MINER_DEADLINES.HEIGHT, MinerDeadlines.MINER_DEADLINES.DEADLINE, MinerDeadlines.MINER_DEADLINES.BASE_TARGET)
+                                .values(checkpoint.accountId, height, deadline.deadline.toLong(), deadline.baseTarget.toLong())
+                                .onDuplicateKeyUpdate()
+                                .set(MinerDeadlines.MINER_DEADLINES.DEADLINE, deadline.deadline.toLong())
+                                .set(MinerDeadlines.MINER_DEADLINES.BASE_TARGET, deadline.baseTarget.toLong())
+                    }
+                    queries.add(query)
+                }
+            }
+            context.batch(queries).execute()
+        }
+    }
+
     override fun close() {
         if (localConnection.get() != null) {
             localConnection.get()!!.close()
             localConnection.set(null)
+            transactionCounterChanges.set(null)
         } else {
             connectionPool.close()
             cacheManager.close()
         }
     }
 
-    private inner class DbMinerStore(private val accountId: Long) : MinerStore {
+    private open inner class DbMinerStore(private val accountId: Long) : MinerStore {
         private val accountIdStr = java.lang.Long.toUnsignedString(accountId)
 
-        private fun recalculateCacheDeadlineCount() { // TODO increase / decrease would be faster...
-            useDslContextVoid { context ->
-                storeInCache(MinerDeadlines.MINER_DEADLINES, accountIdStr + "dlcount", context.selectCount()
-                        .from(MinerDeadlines.MINER_DEADLINES)
-                        .where(MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID.eq(accountId))
-                        .fetchAny(0, Int::class.javaPrimitiveType))
-            }
-        }
-
         override var pendingBalance: BurstValue
             get() = getFromCacheOr(Miners.MINERS, accountIdStr + "pending") {
                 useDslContext { context ->
@@ -450,35 +627,26 @@ class DbStorageService(propertyService: PropertyService, minerMaths: MinerMaths,
                 storeInCache(Miners.MINERS, accountIdStr + "userAgent", userAgent)
             }
 
-        // TODO cache
         override val deadlines: List<Deadline>
-            get() =// TODO cache
-                useDslContext { context ->
-                    context.select(MinerDeadlines.MINER_DEADLINES.BASE_TARGET, MinerDeadlines.MINER_DEADLINES.HEIGHT, MinerDeadlines.MINER_DEADLINES.DEADLINE)
-                            .from(MinerDeadlines.MINER_DEADLINES)
-                            .where(MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID.eq(accountId))
-                            .fetch()
-                            .map { record -> Deadline(BigInteger.valueOf(record.get(MinerDeadlines.MINER_DEADLINES.DEADLINE)), BigInteger.valueOf(record.get(MinerDeadlines.MINER_DEADLINES.BASE_TARGET)), record.get(MinerDeadlines.MINER_DEADLINES.HEIGHT)) }
-                }
+            get() = useDslContext { context ->
+                context.select(MinerDeadlines.MINER_DEADLINES.BASE_TARGET, MinerDeadlines.MINER_DEADLINES.HEIGHT, MinerDeadlines.MINER_DEADLINES.DEADLINE)
+                        .from(MinerDeadlines.MINER_DEADLINES)
+                        .where(MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID.eq(accountId))
+                        .fetch()
+                        .map { record -> Deadline(BigInteger.valueOf(record.get(MinerDeadlines.MINER_DEADLINES.DEADLINE)), BigInteger.valueOf(record.get(MinerDeadlines.MINER_DEADLINES.BASE_TARGET)), record.get(MinerDeadlines.MINER_DEADLINES.HEIGHT)) }
+            }
 
         override val deadlineCount: Int
-            get() = getFromCacheOr(MinerDeadlines.MINER_DEADLINES, accountIdStr + "dlcount") {
-                useDslContext { context ->
-                    context.selectCount()
-                            .from(MinerDeadlines.MINER_DEADLINES)
-                            .where(MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID.eq(accountId))
-                            .fetchAny(0, Int::class.javaPrimitiveType)
-                }
-            } ?: 0
+            get() = deadlineCounters[accountId] ?: 0
 
         override fun removeDeadline(height: Long) {
-            useDslContextVoid { context ->
+            val removed = useDslContext { context ->
                 context.delete(MinerDeadlines.MINER_DEADLINES)
                         .where(MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID.eq(accountId), MinerDeadlines.MINER_DEADLINES.HEIGHT.eq(height))
                         .execute()
             }
             removeFromCache<Deadline>(MinerDeadlines.MINER_DEADLINES, accountIdStr + "deadline" + height.toString())
-            recalculateCacheDeadlineCount()
+            adjustDeadlineCount(accountId, -removed)
         }
 
         override fun getDeadline(height: Long): Deadline? {
@@ -498,18 +666,60 @@ class DbStorageService(propertyService: PropertyService, minerMaths: MinerMaths,
         }
 
         override fun setOrUpdateDeadline(height: Long, deadline: Deadline) {
-            useDslContextVoid { context ->
-                context.mergeInto(MinerDeadlines.MINER_DEADLINES, MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID, MinerDeadlines.MINER_DEADLINES.HEIGHT, MinerDeadlines.MINER_DEADLINES.DEADLINE, MinerDeadlines.MINER_DEADLINES.BASE_TARGET)
-                        .key(MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID, MinerDeadlines.MINER_DEADLINES.HEIGHT)
+            // Insert and update separately, as the affected row count of an upsert does not reliably tell which one happened
+            val inserted = useDslContext { context ->
+                val inserted = context.insertInto(MinerDeadlines.MINER_DEADLINES, MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID, MinerDeadlines.MINER_DEADLINES.HEIGHT, MinerDeadlines.MINER_DEADLINES.DEADLINE, MinerDeadlines.MINER_DEADLINES.BASE_TARGET)
                         .values(accountId, height, deadline.deadline.toLong(), deadline.baseTarget.toLong())
+                        .onDuplicateKeyIgnore()
                         .execute()
+                if (inserted == 0) {
+                    context.update(MinerDeadlines.MINER_DEADLINES)
+                            .set(MinerDeadlines.MINER_DEADLINES.DEADLINE, deadline.deadline.toLong())
+                            .set(MinerDeadlines.MINER_DEADLINES.BASE_TARGET, deadline.baseTarget.toLong())
+                            .where(MinerDeadlines.MINER_DEADLINES.ACCOUNT_ID.eq(accountId), MinerDeadlines.MINER_DEADLINES.HEIGHT.eq(height))
+                            .execute()
+                }
+                inserted
             }
             storeInCache(MinerDeadlines.MINER_DEADLINES, accountIdStr + "deadline" + height.toString(), deadline)
-            recalculateCacheDeadlineCount()
+            adjustDeadlineCount(accountId, inserted)
         }
 
     }
 
+    /**
+     * Store of a miner loaded by [getMinersWithDeadlines]. Serves the deadlines that were loaded with it,
+     * and keeps capacity, share and pending balance in memory until they are passed to [storeMinerAccounting].
+     */
+    private inner class BlockMinerStore(record: MinersRecord, private val windowDeadlines: MutableMap<Long, Deadline>) : DbMinerStore(record.accountId) {
+        override var pendingBalance: BurstValue = BurstValue.fromPlanck(record.pendingBalance ?: 0L)
+        override var estimatedCapacity: Double = record.estimatedCapacity ?: 0.0
+        override var share: Double = record.share ?: 0.0
+
+        override val deadlines: List<Deadline>
+            get() = windowDeadlines.values.toList()
+
+        override fun removeDeadline(height: Long) {
+            super.removeDeadline(height)
+            windowDeadlines.remove(height)
+        }
+
+        override fun setOrUpdateDeadline(height: Long, deadline: Deadline) {
+            super.setOrUpdateDeadline(height, deadline)
+            windowDeadlines[height] = deadline
+        }
+    }
+
+    private class CacheLock {
+        // Incremented on every change to the cache, guarded by this lock
+        var version = 0L
+    }
+
+    private class CounterChanges {
+        var miners = 0
+        val deadlines = HashMap<Long, Int>()
+    }
+
     private inner class DbFeeRecipientStore : FeeRecipientStore {
         override var pendingBalance: BurstValue
             get() = try {
@@ -540,6 +750,8 @@ class DbStorageService(propertyService: PropertyService, minerMaths: MinerMaths,
     companion object {
         private const val POOL_STATE_FEE_RECIPIENT_BALANCE = "feeRecipientBalance"
         private const val POOL_STATE_LAST_PROCESSED_BLOCK = "lastProcessedBlock"
+        private const val STREAM_FETCH_SIZE = 1000
+        private const val BATCH_SIZE = 1000
     }
 
     init {
@@ -592,8 +804,9 @@ class DbStorageService(propertyService: PropertyService, minerMaths: MinerMaths,
         val cacheConfiguration = CacheConfigurationBuilder.newCacheConfigurationBuilder(String::class.java, Any::class.java, ResourcePoolsBuilder.heap(1024 * 1024.toLong()).build()).build()
         for (table in tables) {
             cacheManagerBuilder = cacheManagerBuilder.withCache(table.name, cacheConfiguration)
-            cacheLocks[table] = Any()
+            cacheLocks[table] = CacheLock()
         }
         cacheManager = cacheManagerBuilder.build(true)
+        rebuildCounters()
     }
 }
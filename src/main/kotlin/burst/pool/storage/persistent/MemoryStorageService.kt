@@ -0,0 +1,348 @@
+package burst.pool.storage.persistent
+
+import burst.kit.entity.BurstAddress
+import burst.kit.entity.BurstID
+import burst.kit.entity.BurstValue
+import burst.pool.entity.Payout
+import burst.pool.entity.WonBlock
+import burst.pool.miners.Deadline
+import burst.pool.miners.Miner
+import burst.pool.miners.MinerMaths
+import burst.pool.miners.PoolFeeRecipient
+import burst.pool.pool.StoredSubmission
+import burst.pool.storage.config.PropertyService
+import burst.pool.storage.config.Props
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Storage service that keeps every miner on the heap and uses that as the source of truth.
+ * Miner changes are written to the database as one batch when a block is processed or a payout is recorded,
+ * and the miners are loaded back from the database on startup.
+ * Everything else is stored by the wrapped [DbStorageService].
+ */
+class MemoryStorageService(private val db: DbStorageService, private val minerMaths: MinerMaths, private val propertyService: PropertyService) : StorageService {
+    private val minerStores = ConcurrentHashMap<Long, MemoryMinerStore>()
+    private val dirtyMiners: MutableSet<Long> = ConcurrentHashMap.newKeySet()
+    private val journal = ThreadLocal<Journal?>()
+    private val nMin = propertyService.get(Props.nMin)
+
+    override fun beginTransaction(): StorageService? {
+        check(journal.get() == null) { "Already in transaction" }
+        db.beginTransaction()
+        journal.set(Journal())
+        return this
+    }
+
+    override fun commitTransaction() {
+        val current = journal.get() ?: throw IllegalStateException("Not in transaction")
+        val written = if (current.checkpoint) writeCheckpoints() else emptyList()
+        try {
+            db.commitTransaction()
+        } catch (e: Exception) {
+            restoreDirty(written)
+            throw e
+        }
+        current.undo.clear()
+        current.checkpoint = false
+    }
+
+    override fun rollbackTransaction() {
+        val current = journal.get() ?: throw IllegalStateException("Not in transaction")
+        current.undo.asReversed().forEach { it() }
+        current.undo.clear()
+        current.checkpoint = false
+        db.rollbackTransaction()
+    }
+
+    /**
+     * Writes every miner that changed since the last checkpoint in the current database transaction.
+     * @return The checkpoints that were written, so that they can be marked dirty again if the transaction fails
+     */
+    private fun writeCheckpoints(): List<MinerCheckpoint> {
+        val checkpoints = ArrayList<MinerCheckpoint>()
+        for (accountId in dirtyMiners.toList()) {
+            dirtyMiners.remove(accountId)
+            minerStores[accountId]?.let { checkpoints.add(it.checkpoint()) }
+        }
+        try {
+            db.writeMinerCheckpoints(checkpoints)
+        } catch (e: Exception) {
+            restoreDirty(checkpoints)
+            throw e
+        }
+        logger.debug("Checkpointed {} miners", checkpoints.size)
+        return checkpoints
+    }
+
+    private fun restoreDirty(checkpoints: List<MinerCheckpoint>) {
+        for (checkpoint in checkpoints) {
+            minerStores[checkpoint.accountId]?.restoreDirty(checkpoint.deadlines.keys)
+            dirtyMiners.add(checkpoint.accountId)
+        }
+    }
+
+    /**
+     * Runs the action and writes a checkpoint in its own database transaction
+     */
+    private fun checkpointNow(action: () -> Unit) {
+        db.beginTransaction()
+        try {
+            action()
+            val written = writeCheckpoints()
+            try {
+                db.commitTransaction()
+            } catch (e: Exception) {
+                restoreDirty(written)
+                throw e
+            }
+        } catch (e: Exception) {
+            try {
+                db.rollbackTransaction()
+            } catch (e1: Exception) {
+                logger.error("Error rolling back transaction", e1)
+            }
+            throw e
+        } finally {
+            db.close()
+        }
+    }
+
+    override val minerCount: Int
+        get() = minerStores.size
+
+    override val miners: List<Miner>
+        get() = minerStores.values.map { it.miner }
+
+    override val minersFiltered: List<Miner>
+        get() = minerStores.values.map { it.miner }.filter { miner -> miner.nConf >= nMin }
+
+    override fun getMinersWithDeadlines(minDeadlineHeight: Long): List<Miner> {
+        return miners
+    }
+
+    override fun storeMinerAccounting(accounting: Collection<MinerAccounting>) { // The miners were changed in memory, and are written by the next checkpoint
+    }
+
+    override fun getMiner(address: BurstAddress): Miner? {
+        return minerStores[address.burstID.signedLongId]?.miner
+    }
+
+    override fun getOrNewMiner(address: BurstAddress): Miner {
+        val accountId = address.burstID.signedLongId
+        var created = false
+        val store = minerStores.computeIfAbsent(accountId) {
+            created = true
+            MemoryMinerStore(MinerCheckpoint(accountId, BurstValue.ZERO, 0.0, 0.0, BurstValue.fromBurst(propertyService.get(Props.defaultMinimumPayout).toDouble()), "", "", emptyMap()))
+        }
+        if (created) {
+            journal.get()?.undo?.add { minerStores.remove(accountId) }
+            dirtyMiners.add(accountId)
+        }
+        return store.miner
+    }
+
+    override fun pruneDeadlines(minHeight: Long) {
+        minerStores.values.forEach { store -> store.pruneDeadlines(minHeight) }
+        db.pruneDeadlines(minHeight)
+    }
+
+    override val poolFeeRecipient: PoolFeeRecipient
+        get() = db.poolFeeRecipient
+
+    override val lastProcessedBlock: Int
+        get() = db.lastProcessedBlock
+
+    override fun incrementLastProcessedBlock() {
+        db.incrementLastProcessedBlock()
+        journal.get()?.checkpoint = true
+    }
+
+    override val bestSubmissions: Map<Long, List<StoredSubmission>>
+        get() = db.bestSubmissions
+
+    override fun getBestSubmissionsForBlock(blockHeight: Long): List<StoredSubmission> {
+        return db.getBestSubmissionsForBlock(blockHeight)
+    }
+
+    override fun addBestSubmissionForBlock(blockHeight: Long, submission: StoredSubmission) {
+        db.addBestSubmissionForBlock(blockHeight, submission)
+    }
+
+    override fun removeBestSubmission(blockHeight: Long) {
+        db.removeBestSubmission(blockHeight)
+    }
+
+    override fun addWonBlock(wonBlock: WonBlock) {
+        db.addWonBlock(wonBlock)
+    }
+
+    override fun getWonBlocks(limit: Int): List<WonBlock> {
+        return db.getWonBlocks(limit)
+    }
+
+    override fun addPayout(payout: Payout) { // The balances that were paid out must be stored with the payout
+        val current = journal.get()
+        if (current != null) {
+            db.addPayout(payout)
+            current.checkpoint = true
+        } else {
+            checkpointNow { db.addPayout(payout) }
+        }
+    }
+
+    override fun close() {
+        if (journal.get() != null) {
+            journal.remove()
+        } else {
+            try {
+                checkpointNow {}
+            } catch (e: Exception) {
+                logger.error("Could not checkpoint miners on close", e)
+            }
+        }
+        db.close()
+    }
+
+    private class Journal {
+        val undo = ArrayList<() -> Unit>()
+        var checkpoint = false
+    }
+
+    private inner class MemoryMinerStore(checkpoint: MinerCheckpoint) : MinerStore {
+        private val accountId = checkpoint.accountId
+        private var pendingBalanceValue = checkpoint.pendingBalance
+        private var estimatedCapacityValue = checkpoint.estimatedCapacity
+        private var shareValue = checkpoint.share
+        private var minimumPayoutValue = checkpoint.minimumPayout
+        private var nameValue = checkpoint.name
+        private var userAgentValue = checkpoint.userAgent
+        private val deadlineMap = TreeMap<Long, Deadline>()
+        private val dirtyDeadlineHeights = HashSet<Long>()
+        val miner = Miner(minerMaths, propertyService, BurstAddress.fromId(BurstID.fromLong(accountId)), this)
+
+        /**
+         * Applies a change and remembers how to undo it if the current thread is in a transaction
+         * @param change Makes the change and returns its undo
+         */
+        private fun update(change: () -> () -> Unit) {
+            val undo = synchronized(this) { change() }
+            journal.get()?.undo?.add {
+                synchronized(this) { undo() }
+                dirtyMiners.add(accountId)
+            }
+            dirtyMiners.add(accountId)
+        }
+
+        private fun putDeadline(height: Long, deadline: Deadline?) {
+            if (deadline == null) deadlineMap.remove(height) else deadlineMap[height] = deadline
+            dirtyDeadlineHeights.add(height)
+        }
+
+        @Synchronized
+        fun checkpoint(): MinerCheckpoint {
+            val deadlines = dirtyDeadlineHeights.associateWith { height -> deadlineMap[height] }
+            dirtyDeadlineHeights.clear()
+            return MinerCheckpoint(accountId, pendingBalanceValue, estimatedCapacityValue, shareValue, minimumPayoutValue, nameValue, userAgentValue, deadlines)
+        }
+
+        @Synchronized
+        fun restoreDirty(deadlineHeights: Collection<Long>) {
+            dirtyDeadlineHeights.addAll(deadlineHeights)
+        }
+
+        override var pendingBalance: BurstValue
+            get() = synchronized(this) { pendingBalanceValue }
+            set(pendingBalance) = update {
+                val old = pendingBalanceValue
+                pendingBalanceValue = pendingBalance
+                return@update { pendingBalanceValue = old }
+            }
+
+        override var estimatedCapacity: Double
+            get() = synchronized(this) { estimatedCapacityValue }
+            set(estimatedCapacity) = update {
+                val old = estimatedCapacityValue
+                estimatedCapacityValue = estimatedCapacity
+                return@update { estimatedCapacityValue = old }
+            }
+
+        override var share: Double
+            get() = synchronized(this) { shareValue }
+            set(share) = update {
+                val old = shareValue
+                shareValue = share
+                return@update { shareValue = old }
+            }
+
+        override var minimumPayout: BurstValue
+            get() = synchronized(this) { minimumPayoutValue }
+            set(minimumPayout) = update {
+                val old = minimumPayoutValue
+                minimumPayoutValue = minimumPayout
+                return@update { minimumPayoutValue = old }
+            }
+
+        override var name: String?
+            get() = synchronized(this) { nameValue }
+            set(name) = update {
+                val old = nameValue
+                nameValue = name
+                return@update { nameValue = old }
+            }
+
+        override var userAgent: String?
+            get() = synchronized(this) { userAgentValue }
+            set(userAgent) = update {
+                val old = userAgentValue
+                userAgentValue = userAgent
+                return@update { userAgentValue = old }
+            }
+
+        override val deadlines: List<Deadline>
+            get() = synchronized(this) { ArrayList(deadlineMap.values) }
+
+        override val deadlineCount: Int
+            get() = synchronized(this) { deadlineMap.size }
+
+        override fun removeDeadline(height: Long) = update {
+            val old = deadlineMap[height]
+            putDeadline(height, null)
+            return@update { putDeadline(height, old) }
+        }
+
+        fun pruneDeadlines(minHeight: Long) {
+            if (synchronized(this) { deadlineMap.isEmpty() || deadlineMap.firstKey() >= minHeight }) return
+            update {
+                val expired = deadlineMap.headMap(minHeight)
+                val pruned = TreeMap(expired)
+                expired.clear()
+                return@update { deadlineMap.putAll(pruned) }
+            }
+        }
+
+        override fun getDeadline(height: Long): Deadline? {
+            return synchronized(this) { deadlineMap[height] }
+        }
+
+        override fun setOrUpdateDeadline(height: Long, deadline: Deadline) = update {
+            val old = deadlineMap[height]
+            putDeadline(height, deadline)
+            return@update { putDeadline(height, old) }
+        }
+
+        init {
+            checkpoint.deadlines.forEach { (height, deadline) -> if (deadline != null) deadlineMap[height] = deadline }
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(MemoryStorageService::class.java)
+    }
+
+    init {
+        db.loadMinerCheckpoints().forEach { checkpoint -> minerStores[checkpoint.accountId] = MemoryMinerStore(checkpoint) }
+        logger.info("Loaded {} miners into memory", minerStores.size)
+    }
+}
@@ -0,0 +1,8 @@
+package burst.pool.storage.persistent
+
+import burst.kit.entity.BurstValue
+
+/**
+ * The values of a miner that processing a block changes, as stored by [StorageService.storeMinerAccounting]
+ */
+class MinerAccounting(val accountId: Long, val pendingBalance: BurstValue, val estimatedCapacity: Double, val share: Double)
@@ -0,0 +1,10 @@
+package burst.pool.storage.persistent
+
+import burst.kit.entity.BurstValue
+import burst.pool.miners.Deadline
+
+/**
+ * The stored state of a miner, as loaded and written by [MemoryStorageService]
+ * @param deadlines Deadlines by height. When writing, only the heights that changed, with null for deadlines that were removed.
+ */
+class MinerCheckpoint(val accountId: Long, val pendingBalance: BurstValue, val estimatedCapacity: Double, val share: Double, val minimumPayout: BurstValue, val name: String?, val userAgent: String?, val deadlines: Map<Long, Deadline?>)
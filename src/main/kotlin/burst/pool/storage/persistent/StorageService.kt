@@ -14,6 +14,17 @@ interface StorageService : AutoCloseable {
     val minerCount: Int
     val miners: List<Miner>
     val minersFiltered: List<Miner>
+    /**
+     * Every miner, with its deadlines from [minDeadlineHeight] onwards loaded up front,
+     * so that block processing does not query each miner separately.
+     * Changes to the capacity, share and pending balance of these miners are only stored once passed to [storeMinerAccounting].
+     */
+    fun getMinersWithDeadlines(minDeadlineHeight: Long): List<Miner>
+    fun storeMinerAccounting(accounting: Collection<MinerAccounting>)
+    /**
+     * Removes the deadlines of every miner below [minHeight]
+     */
+    fun pruneDeadlines(minHeight: Long)
     fun getMiner(address: BurstAddress): Miner?
     fun getOrNewMiner(address: BurstAddress): Miner
     val poolFeeRecipient: PoolFeeRecipient
@@ -0,0 +1 @@
+CREATE INDEX miner_deadlines_height_index ON miner_deadlines (height);
@@ -0,0 +1,63 @@
+package burst.pool.miners
+
+import burst.kit.entity.BurstAddress
+import burst.kit.entity.BurstID
+import burst.pool.node.NodeSelector
+import burst.pool.storage.config.Prop
+import burst.pool.storage.config.PropertyService
+import burst.pool.storage.persistent.StorageService
+import java.lang.reflect.Proxy
+import java.math.BigInteger
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.test.Test
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class DeadlineQueueTest {
+    private val propertyService = object : PropertyService {
+        override fun <T> get(prop: Prop<T>): T {
+            return prop.defaultValue
+        }
+    }
+
+    // Only the transaction methods are used by the queue, the deadlines themselves are stored by the test queue below
+    private val storageService = Proxy.newProxyInstance(StorageService::class.java.classLoader, arrayOf(StorageService::class.java)) { proxy, method, _ ->
+        if (method.name == "beginTransaction") proxy else null
+    } as StorageService
+
+    @Test
+    fun flushWaitsForOlderDeadlineWhileNewerOnesAreStored() {
+        val minerTracker = MinerTracker(NodeSelector(emptyList()), propertyService)
+        val failingMiner = BurstAddress.fromId(BurstID.fromLong(1L))
+        val otherMiner = BurstAddress.fromId(BurstID.fromLong(2L))
+        val failing = AtomicBoolean(true)
+        val otherStored = CountDownLatch(1)
+        val deadlineQueue = object : DeadlineQueue(storageService, minerTracker, propertyService) {
+            override fun store(storageService: StorageService, minerAddress: BurstAddress, deadline: Deadline, userAgent: String?) {
+                if (minerAddress == failingMiner) {
+                    if (failing.get()) throw IllegalStateException("Failing to store deadline")
+                } else {
+                    otherStored.countDown()
+                }
+            }
+        }
+        try {
+            deadlineQueue.submit(failingMiner, Deadline(BigInteger.ONE, BigInteger.ONE, 1L), null)
+            val flushed = CompletableFuture.supplyAsync { deadlineQueue.flush() }
+            Thread.sleep(100)
+            // Submitted after the flush started, and stored while the older deadline is waiting to be retried
+            deadlineQueue.submit(otherMiner, Deadline(BigInteger.ONE, BigInteger.ONE, 1L), null)
+            assertTrue(otherStored.await(5, TimeUnit.SECONDS))
+            Thread.sleep(300)
+            assertFalse(flushed.isDone)
+            failing.set(false)
+            assertTrue(flushed.get(5, TimeUnit.SECONDS))
+        } finally {
+            deadlineQueue.close()
+            minerTracker.close()
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package burst.pool.net
+
+import java.io.BufferedReader
+import java.io.InputStreamReader
+import java.net.ServerSocket
+import java.net.Socket
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+class NioServerTest {
+    /**
+     * PushServer answers a malformed line from [NioServer.onRead], on the selector thread, as do BinaryServer and NioHttpServer for their errors.
+     * Such a reply has to be written without waiting for the client to send anything else.
+     */
+    @Test
+    fun replySentFromOnReadIsWrittenWithoutFurtherTraffic() {
+        val port = ServerSocket(0).use { it.localPort }
+        val server = MalformedLineServer(port)
+        server.start()
+        try {
+            Socket("localhost", port).use { socket ->
+                socket.soTimeout = 5000
+                socket.getOutputStream().write("not json\n".toByteArray(StandardCharsets.UTF_8))
+                socket.getOutputStream().flush()
+                val reader = BufferedReader(InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))
+                assertEquals("{\"result\":\"Malformed Request\"}", reader.readLine())
+            }
+        } finally {
+            server.close()
+        }
+    }
+
+    /**
+     * Answers every line the way PushServer answers one that is not JSON
+     */
+    private class MalformedLineServer(port: Int) : NioServer(port, "test-server", 1024) {
+        override fun onConnected(connection: NioConnection) {
+        }
+
+        override fun onRead(connection: NioConnection, buffer: ByteBuffer) {
+            while (buffer.hasRemaining()) {
+                if (buffer.get() == NEWLINE) {
+                    connection.send("{\"result\":\"Malformed Request\"}\n".toByteArray(StandardCharsets.UTF_8))
+                }
+            }
+        }
+
+        companion object {
+            private const val NEWLINE = '\n'.toByte()
+        }
+    }
+}